@@ -9,12 +9,73 @@ public class Constants {
     static final String ERR_FETCHING_DATA_MSG = "Unable to fetch data";
     static final String COMMON_REASON = "HTTP code: %s, Reason: %s";
     static final String COMMON_RESOLUTION = "Ensure that the account credentials are correct and try again";
+    static final String ERR_INVALID_PROPERTY_MSG = "Invalid property value";
+    static final String ERR_PROPERTY_NOT_POSITIVE_REASON = "Property %s must be greater than zero";
+    static final String ERR_PROPERTY_NOT_POSITIVE_RESOLUTION = "Ensure that the property %s is a positive integer";
+    static final String ERR_PROPERTY_NEGATIVE_REASON = "Property %s must not be negative";
+    static final String ERR_PROPERTY_NEGATIVE_RESOLUTION = "Ensure that the property %s is zero or a positive " +
+                                                           "integer";
+    static final String ERR_PROPERTY_OUT_OF_RANGE_REASON = "Property %s must be between %d and %d";
+    static final String ERR_PROPERTY_OUT_OF_RANGE_RESOLUTION = "Ensure that the property %s is an integer " +
+                                                               "between %d and %d";
     static final String FORWARD_SLASH = "/";
-    static final String GENERATE_SCHEMA_FROM_FILE_URL = "http://qa.mappingservice.gaian.com/generate/schema/file?" +
+    static final String MAX_IN_FLIGHT_PROP = "maxInFlight";
+    static final String MAX_IN_FLIGHT_LABEL = "Max in-flight requests";
+    static final String MAX_IN_FLIGHT_DESC = "Maximum number of requests issued concurrently for input documents, " +
+                                             "1 processes one document at a time";
+    static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    static final String FIELDS_TO_KEEP_PROP = "fieldsToKeep";
+    static final String FIELDS_TO_KEEP_LABEL = "Fields to keep";
+    static final String FIELDS_TO_KEEP_DESC = "Comma-separated JSON pointers or dotted paths of the response " +
+                                              "fields to keep, other fields are skipped while parsing. Leave " +
+                                              "empty to keep the whole response";
+    static final String PRESERVE_ORDER_PROP = "preserveOrder";
+    static final String PRESERVE_ORDER_LABEL = "Preserve order";
+    static final String PRESERVE_ORDER_DESC = "Write output documents in input order, clear to emit them as soon " +
+                                              "as their requests complete";
+    static final String CACHE_RESPONSES_PROP = "cacheResponses";
+    static final String CACHE_RESPONSES_LABEL = "Cache responses";
+    static final String CACHE_RESPONSES_DESC = "Reuse the mapping service response cached on the node when the " +
+                                               "file content and the other properties are unchanged, instead " +
+                                               "of uploading the file again";
+    static final String CACHE_KEY_SEPARATOR = "|";
+    static final String PART_SIZE_PROP = "partSizeMb";
+    static final String PART_SIZE_LABEL = "Resumable part size (MB)";
+    static final String PART_SIZE_DESC = "Upload the file in parts of this size, checkpointed on the node so " +
+                                         "that a failed upload resumes after the last acknowledged part. 0 " +
+                                         "uploads the file in one request";
+    static final long BYTES_PER_MB = 1024 * 1024;
+    // Every upload in flight holds its current part in memory as a single byte array.
+    static final int MAX_PART_SIZE_MB = 64;
+    static final String DEADLINE_PROP = "callDeadlineSec";
+    static final String DEADLINE_LABEL = "Call deadline (seconds)";
+    static final String DEADLINE_DESC = "Maximum time for one service call including its retries, after which " +
+                                        "the call is abandoned and its thread freed. 0 leaves calls bounded " +
+                                        "only by the connection timeouts";
+    static final int DEFAULT_DEADLINE_SEC = 120;
+    static final String HEDGE_PERCENTILE_PROP = "hedgePercentile";
+    static final String HEDGE_PERCENTILE_LABEL = "Hedge after latency percentile";
+    static final String HEDGE_PERCENTILE_DESC = "Send a duplicate lookup when no response has arrived by this " +
+                                                "percentile of the service's recent latency, and use whichever " +
+                                                "answers first. 0 turns hedging off";
+    static final String HEDGE_MAX_PERCENT_PROP = "hedgeMaxPercent";
+    static final String HEDGE_MAX_PERCENT_LABEL = "Max hedged requests (%)";
+    static final String HEDGE_MAX_PERCENT_DESC = "Upper bound on duplicate lookups as a percentage of all " +
+                                                 "lookups, so that hedging cannot multiply load on a slow service";
+    static final int DEFAULT_HEDGE_MAX_PERCENT = 5;
+    public static final String MAPPING_AUTHORITY = "qa.mappingservice.gaian.com";
+    public static final String TFW_AUTHORITY = "192.168.28.37:8282";
+    static final String GENERATE_SCHEMA_FROM_FILE_URL = "http://" + MAPPING_AUTHORITY + "/generate/schema/file?" +
                                                         "entityId=%s&tenantId=%s&version=%s";
-    static final String MAP_ENTITIES_FROM_FILE_URL = "http://qa.mappingservice.gaian.com/entity/mapping/file?" +
+    static final String MAP_ENTITIES_FROM_FILE_URL = "http://" + MAPPING_AUTHORITY + "/entity/mapping/file?" +
                                                      "mappingId=%s";
-    static final String IS_ENTITY_PART_OF_GROUP_URL = "http://192.168.28.37:8282/TFW//v1/%s/entity/groups/%s/%s";
-    static final String IS_CONTEXT_TRUE_URL = "http://192.168.28.37:8282/TFW/v1/%s/context/evaluation/%s";
-    static final String GET_ANALYTICS_QUERY_RESULTS_URL = "http://192.168.28.37:8282/TFW/v1/%s/analytics/query/data/%s";
+    static final String MAPPING_DEFINITION_URL = "http://" + MAPPING_AUTHORITY + "/entity/mapping/%s";
+    static final String IS_ENTITY_PART_OF_GROUP_URL = "http://" + TFW_AUTHORITY + "/TFW//v1/%s/entity/groups/%s/%s";
+    static final String IS_ENTITY_PART_OF_GROUP_BULK_URL = "http://" + TFW_AUTHORITY + "/TFW/v1/%s/entity/groups/%s";
+    static final String IS_PART_OF_GROUP_KEY = "isPartOfGroup";
+    static final String GROUP_MEMBERS_KEY = "members";
+    static final String IS_CONTEXT_TRUE_URL = "http://" + TFW_AUTHORITY + "/TFW/v1/%s/context/evaluation/%s";
+    static final String GET_ANALYTICS_QUERY_RESULTS_URL = "http://" + TFW_AUTHORITY +
+                                                          "/TFW/v1/%s/analytics/query/data/%s";
+    static final String GET_ANALYTICS_QUERY_RESULTS_PAGE_URL = GET_ANALYTICS_QUERY_RESULTS_URL + "?page=%s&size=%s";
 }
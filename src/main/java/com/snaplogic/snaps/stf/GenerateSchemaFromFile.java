@@ -1,31 +1,67 @@
 package com.snaplogic.snaps.stf;
 
+import com.google.common.collect.ImmutableSet;
 import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.FileUploader;
+import com.snaplogic.snaps.stf.utils.RecordReader;
+import com.snaplogic.snaps.stf.utils.RecordSampler;
+import com.snaplogic.snaps.stf.utils.RequestPipeline;
+import com.snaplogic.snaps.stf.utils.ResponseDiskCache;
+import com.snaplogic.snaps.stf.utils.ResumableUploader;
 import com.snaplogic.snaps.stf.utils.RestUtil;
+import com.snaplogic.snaps.stf.utils.SchemaInference;
 import com.google.inject.Inject;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.http.entity.mime.content.InputStreamBody;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static com.snaplogic.snaps.stf.Constants.BYTES_PER_MB;
+import static com.snaplogic.snaps.stf.Constants.CACHE_KEY_SEPARATOR;
+import static com.snaplogic.snaps.stf.Constants.DEFAULT_MAX_IN_FLIGHT;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_DESC;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_LABEL;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_PROP;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_DESC;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_LABEL;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_PROP;
+import static com.snaplogic.snaps.stf.Constants.ERR_INVALID_PROPERTY_MSG;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_MISSING_REASON;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_MISSING_RESOLUTION;
+import static com.snaplogic.snaps.stf.Constants.ERR_SNAP_PROPERTY_MISSING_MSG;
 import static com.snaplogic.snaps.stf.Constants.FORWARD_SLASH;
 import static com.snaplogic.snaps.stf.Constants.GENERATE_SCHEMA_FROM_FILE_URL;
-import static com.snaplogic.snaps.stf.Constants.RESPONSE_TYPE_MAP;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_DESC;
+import static com.snaplogic.snaps.stf.Constants.MAX_PART_SIZE_MB;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_LABEL;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_PROP;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_DESC;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_LABEL;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_PROP;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_DESC;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_LABEL;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_PROP;
 import static com.snaplogic.snaps.stf.utils.RestUtil.RestResponseObject;
 
 @Version()
@@ -41,7 +77,8 @@ public class GenerateSchemaFromFile extends SimpleSnap {
     private static final String ENTITY_ID_FIELD_DESCRIPTION = "Managed Service Entity Id";
     private static final String INPUT_FILE_FIELD = "inputFile";
     private static final String INPUT_FILE_FIELD_LABEL = "Input File";
-    private static final String INPUT_FILE_FIELD_DESCRIPTION = "Managed Service Input File";
+    private static final String INPUT_FILE_FIELD_DESCRIPTION = "Managed Service Input File, evaluated for " +
+            "every input document";
     private static final String BINARY_FILE_PATH = "binary.file_path";
     private static final String TENANT_ID_FIELD = "tenantId";
     private static final String TENANT_ID_FIELD_LABEL = "Tenant Id";
@@ -49,12 +86,54 @@ public class GenerateSchemaFromFile extends SimpleSnap {
     private static final String VERSION_FIELD = "version";
     private static final String VERSION_FIELD_LABEL = "Version";
     private static final String VERSION_FIELD_DESCRIPTION = "Managed Service Version";
+    private static final String COMPRESS_UPLOAD_FIELD = "compressUpload";
+    private static final String COMPRESS_UPLOAD_FIELD_LABEL = "Compress upload";
+    private static final String COMPRESS_UPLOAD_FIELD_DESCRIPTION = "Gzip-compress the file while it is " +
+            "uploaded, falls back to a plain upload when the mapping service does not accept compressed requests";
+    private static final String SAMPLING_MODE_FIELD = "samplingMode";
+    private static final String SAMPLING_MODE_FIELD_LABEL = "Sampling mode";
+    private static final String SAMPLING_MODE_FIELD_DESCRIPTION = "Records of the input file to upload for " +
+            "schema generation: None uploads the whole file, Head the first records and Reservoir a random " +
+            "sample of records from the whole file";
+    private static final String SAMPLE_SIZE_FIELD = "sampleSize";
+    private static final String SAMPLE_SIZE_FIELD_LABEL = "Sample size";
+    private static final String SAMPLE_SIZE_FIELD_DESCRIPTION = "Number of CSV or JSON records to upload when " +
+            "sampling";
+    private static final String SAMPLING_MODE_NONE = "None";
+    private static final String SAMPLING_MODE_HEAD = "Head";
+    private static final String SAMPLING_MODE_RESERVOIR = "Reservoir";
+    private static final int DEFAULT_SAMPLE_SIZE = 1000;
+    private static final int MAX_SAMPLE_SIZE = 100000;
+    private static final String SCHEMA_SOURCE_FIELD = "schemaSource";
+    private static final String SCHEMA_SOURCE_FIELD_LABEL = "Schema source";
+    private static final String SCHEMA_SOURCE_FIELD_DESCRIPTION = "Where the schema is generated: Remote " +
+            "uploads the file to the mapping service, Local infers it on the node for CSV and JSON files and " +
+            "Parity does both and adds the differences to the mapping service response";
+    private static final String SCHEMA_SOURCE_REMOTE = "Remote";
+    private static final String SCHEMA_SOURCE_LOCAL = "Local";
+    private static final String SCHEMA_SOURCE_PARITY = "Parity";
+    private static final String ERR_PARITY_SAMPLING_REASON = "%s Parity compares two schemas, which a random " +
+            "sample drawn for each would make differ by chance";
+    private static final String ERR_PARITY_SAMPLING_RESOLUTION = "Use None or Head %s with %s Parity";
+    private static final String SCHEMA_CACHE_PREFIX = "schema";
+    private static final String SCHEMA_KEY = "schema";
+    private static final String RECORD_COUNT_KEY = "recordCount";
+    private static final String PARITY_KEY = "parity";
+    private static final String PARITY_MATCHES_KEY = "matches";
+    private static final String PARITY_DIFFERENCES_KEY = "differences";
+    private static final String PIPELINE_NAME = "generate-schema";
     private String entityId;
-    private String inputFile;
-    private String fileName;
+    private ExpressionProperty inputFileExpression;
     private String tenantId;
     private String version;
-    private URLConnection urlConnection;
+    private boolean compressUpload;
+    private String samplingMode;
+    private int sampleSize;
+    private String schemaSource;
+    private boolean cacheResponses;
+    private FileUploader fileUploader;
+    private ResumableUploader resumableUploader;
+    private RequestPipeline<Document, Map> requestPipeline;
     private static final String GET_URL_CONNECTION_ERROR = "Exception while opening URL connection";
     private static final String COMMON_RESOLUTION = "Ensure that the account credentials are correct and try again";
     private static final String FORMAT_SLDB = "sldb:///%s";
@@ -63,6 +142,9 @@ public class GenerateSchemaFromFile extends SimpleSnap {
     @Inject
     private RestUtil restUtil;
     private static final String POSTING_DATA_MESSAGE_ERROR = "Unable to post data";
+    private static final String INFER_SCHEMA_MESSAGE_ERROR = "Unable to infer schema from file";
+    private static final String INFER_SCHEMA_RESOLUTION = "Ensure that the input file is a valid CSV, JSON or " +
+            "JSON lines file";
     private static final String COMMON_REASON = "HTTP code: %s, Reason: %s";
 
     @Override
@@ -72,6 +154,7 @@ public class GenerateSchemaFromFile extends SimpleSnap {
                 .add();
         propertyBuilder.describe(INPUT_FILE_FIELD, INPUT_FILE_FIELD_LABEL, INPUT_FILE_FIELD_DESCRIPTION)
                 .required()
+                .expression()
                 .schemaAware(SnapProperty.DecoratorType.ACCEPTS_SCHEMA)
                 .fileBrowsing()
                 .dataLocationIdentifier(BINARY_FILE_PATH)
@@ -82,59 +165,240 @@ public class GenerateSchemaFromFile extends SimpleSnap {
         propertyBuilder.describe(VERSION_FIELD, VERSION_FIELD_LABEL, VERSION_FIELD_DESCRIPTION)
                 .required()
                 .add();
+        propertyBuilder.describe(COMPRESS_UPLOAD_FIELD, COMPRESS_UPLOAD_FIELD_LABEL,
+                COMPRESS_UPLOAD_FIELD_DESCRIPTION)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+        propertyBuilder.describe(SAMPLING_MODE_FIELD, SAMPLING_MODE_FIELD_LABEL, SAMPLING_MODE_FIELD_DESCRIPTION)
+                .withAllowedValues(ImmutableSet.of(SAMPLING_MODE_NONE, SAMPLING_MODE_HEAD, SAMPLING_MODE_RESERVOIR))
+                .defaultValue(SAMPLING_MODE_NONE)
+                .add();
+        propertyBuilder.describe(SAMPLE_SIZE_FIELD, SAMPLE_SIZE_FIELD_LABEL, SAMPLE_SIZE_FIELD_DESCRIPTION)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_SAMPLE_SIZE)
+                .add();
+        propertyBuilder.describe(SCHEMA_SOURCE_FIELD, SCHEMA_SOURCE_FIELD_LABEL, SCHEMA_SOURCE_FIELD_DESCRIPTION)
+                .withAllowedValues(ImmutableSet.of(SCHEMA_SOURCE_REMOTE, SCHEMA_SOURCE_LOCAL, SCHEMA_SOURCE_PARITY))
+                .defaultValue(SCHEMA_SOURCE_REMOTE)
+                .add();
+        propertyBuilder.describe(CACHE_RESPONSES_PROP, CACHE_RESPONSES_LABEL, CACHE_RESPONSES_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+        propertyBuilder.describe(PART_SIZE_PROP, PART_SIZE_LABEL, PART_SIZE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
+        propertyBuilder.describe(MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL, MAX_IN_FLIGHT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAX_IN_FLIGHT)
+                .add();
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_LABEL, PRESERVE_ORDER_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
         entityId = propertyValues.get(ENTITY_ID_FIELD);
-        inputFile =  propertyValues.get(INPUT_FILE_FIELD);
-        fileName = StringUtils.substringAfterLast(inputFile, FORWARD_SLASH);
+        inputFileExpression = propertyValues.getAsExpression(INPUT_FILE_FIELD);
         tenantId = propertyValues.get(TENANT_ID_FIELD);
         version = propertyValues.get(VERSION_FIELD);
+        compressUpload = Boolean.TRUE.equals(propertyValues.get(COMPRESS_UPLOAD_FIELD));
+        samplingMode = propertyValues.get(SAMPLING_MODE_FIELD);
+        if (StringUtils.isBlank(samplingMode)) {
+            samplingMode = SAMPLING_MODE_NONE;
+        }
+        // The sample is held in memory and uploaded as one body, so its size is capped.
+        sampleSize = SAMPLING_MODE_NONE.equals(samplingMode) ? DEFAULT_SAMPLE_SIZE :
+                PropertyValidation.integerInRange(propertyValues, SAMPLE_SIZE_FIELD, SAMPLE_SIZE_FIELD_LABEL,
+                        DEFAULT_SAMPLE_SIZE, 1, MAX_SAMPLE_SIZE);
+        schemaSource = propertyValues.get(SCHEMA_SOURCE_FIELD);
+        if (StringUtils.isBlank(schemaSource)) {
+            schemaSource = SCHEMA_SOURCE_REMOTE;
+        }
+        if (SCHEMA_SOURCE_PARITY.equals(schemaSource) && SAMPLING_MODE_RESERVOIR.equals(samplingMode)) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_PARITY_SAMPLING_REASON, SCHEMA_SOURCE_FIELD_LABEL))
+                    .withResolution(String.format(ERR_PARITY_SAMPLING_RESOLUTION, SAMPLING_MODE_FIELD_LABEL,
+                            SCHEMA_SOURCE_FIELD_LABEL));
+        }
+        cacheResponses = Boolean.TRUE.equals(propertyValues.get(CACHE_RESPONSES_PROP));
+        fileUploader = new FileUploader(restUtil);
+        int partSizeMb = PropertyValidation.integerInRange(propertyValues, PART_SIZE_PROP, PART_SIZE_LABEL, 0, 0,
+                MAX_PART_SIZE_MB);
+        resumableUploader = partSizeMb == 0 ? null :
+                new ResumableUploader(restUtil, (int) (partSizeMb * BYTES_PER_MB));
+        int maxInFlight = PropertyValidation.positiveInteger(propertyValues, MAX_IN_FLIGHT_PROP,
+                MAX_IN_FLIGHT_LABEL, DEFAULT_MAX_IN_FLIGHT);
+        Boolean preserveOrder = propertyValues.get(PRESERVE_ORDER_PROP);
+        // Schemas are written with their input document as lineage.
+        requestPipeline = new RequestPipeline<>(PIPELINE_NAME, maxInFlight, !Boolean.FALSE.equals(preserveOrder),
+                RequestPipeline.forDocuments((document, result) ->
+                        outputViews.write(documentUtility.newDocument(result), document), errorViews));
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? 0 :
+                Math.max(0, deadlineValue.intValue())));
+    }
+
+    /**
+     * Path of an input file referenced by a document, relative to the project's sldb file system.
+     */
+    private static class SourceFile {
+        private final String path;
+        private final String name;
+
+        SourceFile(String path) {
+            this.path = path;
+            this.name = StringUtils.substringAfterLast(path, FORWARD_SLASH);
+        }
+    }
+
+    private SourceFile evaluateInputFile(Document document) {
+        Object value = inputFileExpression.eval(document);
+        if (value == null || StringUtils.isBlank(value.toString())) {
+            throw new SnapDataException(ERR_SNAP_PROPERTY_MISSING_MSG)
+                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON, INPUT_FILE_FIELD_LABEL))
+                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION, INPUT_FILE_FIELD_LABEL));
+        }
+        return new SourceFile(value.toString());
     }
 
     private URLConnection getUrlConnection(URL url) throws IOException {
-        urlConnection = url.openConnection();
+        URLConnection urlConnection = url.openConnection();
         if (urlConnection == null) {
-            errorViews.write((SnapDataException)
-                    new SnapDataException(GET_URL_CONNECTION_ERROR)
-                            .withResolution(COMMON_RESOLUTION));
+            throw (SnapDataException) new SnapDataException(GET_URL_CONNECTION_ERROR)
+                    .withResolution(COMMON_RESOLUTION);
         }
         return urlConnection;
     }
 
-    private HttpEntity createEntity() {
+    private InputStream openInputFile(SourceFile file) {
         try {
-            inputFile = String.format(FORMAT_SLDB, inputFile);
             URI build;
-            build = new URIBuilder(new URI(inputFile)).build();
+            build = new URIBuilder(new URI(String.format(FORMAT_SLDB, file.path))).build();
             String st = build.toString();
-            MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
             URL url = new URL(st);
-            urlConnection = getUrlConnection(url);
+            URLConnection urlConnection = getUrlConnection(url);
             urlConnection.connect();
-            InputStream inputStream = urlConnection.getInputStream();
-            InputStreamBody inputStreamBody;
-            inputStreamBody = new InputStreamBody(inputStream, fileName);
-            return multipartEntityBuilder.addPart(INPUT_FILE, inputStreamBody).build();
+            return urlConnection.getInputStream();
         } catch (IOException | SecurityException | URISyntaxException exception) {
-            errorViews.write((SnapDataException)
-                    new SnapDataException(exception, CREATE_ENTITY_EXCEPTION)
-                            .withResolution(COMMON_RESOLUTION));
+            throw (SnapDataException) new SnapDataException(exception, CREATE_ENTITY_EXCEPTION)
+                    .withResolution(COMMON_RESOLUTION);
+        }
+    }
+
+    /**
+     * Opens the input file as a multipart body. Called once per upload attempt, so a plain retry after a
+     * rejected compressed upload reads the file from the start again.
+     */
+    private ContentBody createBody(SourceFile file) {
+        InputStream inputStream = openInputFile(file);
+        if (SAMPLING_MODE_NONE.equals(samplingMode)) {
+            return new InputStreamBody(inputStream, file.name);
+        }
+        try {
+            return new ByteArrayBody(sample(file, inputStream), file.name);
+        } catch (IOException exception) {
+            throw (SnapDataException) new SnapDataException(exception, CREATE_ENTITY_EXCEPTION)
+                    .withResolution(COMMON_RESOLUTION);
         }
-        return null;
+    }
+
+    /**
+     * Reads the sampled records of the file and re-assembles them into a file of the same format, keeping the
+     * CSV header and whole records.
+     */
+    private byte[] sample(SourceFile file, InputStream inputStream) throws IOException {
+        try (RecordReader recordReader = RecordReader.open(inputStream)) {
+            List<String> records = sampleRecords(recordReader);
+            ByteArrayOutputStream sample = new ByteArrayOutputStream();
+            recordReader.write(records, sample);
+            LOGGER.info("Uploading {} sampled {} records of {}", records.size(), recordReader.getFormat(),
+                    file.name);
+            return sample.toByteArray();
+        }
+    }
+
+    private List<String> sampleRecords(RecordReader recordReader) throws IOException {
+        return SAMPLING_MODE_HEAD.equals(samplingMode) ?
+                RecordSampler.head(recordReader, sampleSize) :
+                RecordSampler.reservoir(recordReader, sampleSize);
     }
 
     @Override
     protected void process(Document document, String s) {
         LOGGER.debug("Inside GenerateSchema.process() method");
+        SourceFile file;
+        try {
+            file = evaluateInputFile(document);
+        } catch (SnapDataException e) {
+            errorViews.write(e, document);
+            return;
+        }
+        requestPipeline.submit(document, () -> generateSchema(file));
+        LOGGER.debug("End of GenerateSchema.process() method");
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+        requestPipeline.run(super::execute);
+    }
+
+    private Map generateSchema(SourceFile file) {
         Map map;
+        switch (schemaSource) {
+            case SCHEMA_SOURCE_LOCAL:
+                map = inferSchema(file);
+                break;
+            case SCHEMA_SOURCE_PARITY:
+                map = generateSchemaRemotely(file);
+                Map localMap = inferSchema(file);
+                List<Map<String, Object>> differences = SchemaInference.diff(map, localMap);
+                if (!differences.isEmpty()) {
+                    LOGGER.warn("Local schema of {} differs from the mapping service in {} places", file.name,
+                            differences.size());
+                }
+                Map<String, Object> parity = new LinkedHashMap<>();
+                parity.put(PARITY_MATCHES_KEY, differences.isEmpty());
+                parity.put(PARITY_DIFFERENCES_KEY, differences);
+                map.put(PARITY_KEY, parity);
+                break;
+            default:
+                map = generateSchemaRemotely(file);
+                break;
+        }
+        return map;
+    }
+
+    private Map generateSchemaRemotely(SourceFile file) {
         try {
-            HttpEntity payload = createEntity();
+            String cacheKey = null;
+            if (cacheResponses) {
+                // Sampled uploads get different responses, so the sampling settings are part of the key.
+                cacheKey = StringUtils.join(new Object[]{SCHEMA_CACHE_PREFIX,
+                        ResponseDiskCache.hash(openInputFile(file)), entityId, tenantId, version, samplingMode,
+                        sampleSize}, CACHE_KEY_SEPARATOR);
+                Map cachedMap = ResponseDiskCache.getInstance().get(cacheKey);
+                if (cachedMap != null) {
+                    LOGGER.info("Using cached schema of unchanged file {}", file.name);
+                    return cachedMap;
+                }
+            }
             String generateSchemaFromFileUrl;
             generateSchemaFromFileUrl = String.format(GENERATE_SCHEMA_FROM_FILE_URL, entityId, tenantId, version);
-            RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpPost.METHOD_NAME, payload,
-                    generateSchemaFromFileUrl, RESPONSE_TYPE_MAP);
+            // Samples are built in memory and small, so only whole files are uploaded in resumable parts.
+            RestResponseObject restResponseObject = resumableUploader != null &&
+                    SAMPLING_MODE_NONE.equals(samplingMode) ?
+                    resumableUploader.upload(generateSchemaFromFileUrl, file.path, () -> openInputFile(file)) :
+                    fileUploader.upload(generateSchemaFromFileUrl, INPUT_FILE, () -> createBody(file),
+                            compressUpload);
             StatusLine statusLine = restResponseObject.getStatusLine();
             if (statusLine != null) {
                 LOGGER.error("Failed to generate schema with Http response code {} and reason {}",
@@ -145,16 +409,42 @@ public class GenerateSchemaFromFile extends SimpleSnap {
                                 statusLine.getStatusCode(),
                                 statusLine.getReasonPhrase()))
                         .withResolution(COMMON_RESOLUTION);
-            } else {
-                map = restResponseObject.getBody();
-                outputViews.write(documentUtility.newDocument(map));
             }
+            if (cacheKey != null) {
+                ResponseDiskCache.getInstance().put(cacheKey, restResponseObject.getBody());
+            }
+            return restResponseObject.getBody();
         } catch (IOException e1) {
             throw new SnapDataException(e1, POSTING_DATA_MESSAGE_ERROR)
                     .withReason(e1.getMessage())
                     .withResolution(COMMON_RESOLUTION);
         }
-        LOGGER.debug("End of GenerateSchema.process() method");
     }
-}
 
+    /**
+     * Infers the schema of the file, or of its sampled records, without calling the mapping service.
+     */
+    private Map inferSchema(SourceFile file) {
+        try (RecordReader recordReader = RecordReader.open(openInputFile(file))) {
+            SchemaInference.Records records = recordReader::next;
+            if (!SAMPLING_MODE_NONE.equals(samplingMode)) {
+                Iterator<String> sample = sampleRecords(recordReader).iterator();
+                records = () -> sample.hasNext() ? sample.next() : null;
+            }
+            Map<String, Object> schema = SchemaInference.infer(recordReader, records,
+                    Runtime.getRuntime().availableProcessors());
+            LOGGER.info("Inferred schema of {} from {} {} records", file.name, schema.get(RECORD_COUNT_KEY),
+                    recordReader.getFormat());
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put(ENTITY_ID_FIELD, entityId);
+            map.put(TENANT_ID_FIELD, tenantId);
+            map.put(VERSION_FIELD, version);
+            map.put(SCHEMA_KEY, schema);
+            return map;
+        } catch (IOException e1) {
+            throw new SnapDataException(e1, INFER_SCHEMA_MESSAGE_ERROR)
+                    .withReason(e1.getMessage())
+                    .withResolution(INFER_SCHEMA_RESOLUTION);
+        }
+    }
+}
@@ -3,20 +3,27 @@ package com.snaplogic.snaps.stf;
 import com.google.inject.Inject;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.FieldProjection;
+import com.snaplogic.snaps.stf.utils.RequestPipeline;
 import com.snaplogic.snaps.stf.utils.RestUtil;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
 import org.apache.http.client.methods.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.snaplogic.snaps.stf.Constants.*;
 import static com.snaplogic.snaps.stf.utils.RestUtil.RestResponseObject;
@@ -30,29 +37,55 @@ public class Get extends SimpleSnap {
     private static final Logger LOGGER = LoggerFactory.getLogger(Get.class);
     private static final String GET_URL_FIELD_PROP = "getURL";
     private static final String GET_URL_FIELD_LABEL = "URL";
-    private static final String GET_URL_FIELD_DESC = "URL used to place GET Request";
+    private static final String GET_URL_FIELD_DESC = "URL used to place GET Request, evaluated for every " +
+            "input document. An array of URLs is fetched concurrently, up to the maximum requests in flight, " +
+            "with one output document per URL in array order";
+    private static final String ERR_INVALID_URL_REASON = "Property %s evaluated to %s instead of a URL or " +
+            "an array of URLs";
+    private static final String ERR_URL_UNREACHABLE_RESOLUTION = "Ensure that the URL is reachable and try again";
+    private static final String PIPELINE_NAME = "get";
 
-    private String url;
+    private ExpressionProperty urlExpression;
+    private FieldProjection projection;
+    private RequestPipeline<Document, Map> requestPipeline;
     @Inject
     private RestUtil restUtil;
 
-    private String getUrl() {
-        return url;
-    }
-    private void setUrl(String url) {
-        this.url = url;
-    }
-
     @Override
     public void defineProperties(PropertyBuilder propertyBuilder) {
         propertyBuilder.describe(GET_URL_FIELD_PROP, GET_URL_FIELD_LABEL, GET_URL_FIELD_DESC)
                 .required()
+                .expression()
+                .add();
+        propertyBuilder.describe(FIELDS_TO_KEEP_PROP, FIELDS_TO_KEEP_LABEL, FIELDS_TO_KEEP_DESC)
+                .add();
+        propertyBuilder.describe(MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL, MAX_IN_FLIGHT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAX_IN_FLIGHT)
+                .add();
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_LABEL, PRESERVE_ORDER_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_DEADLINE_SEC)
                 .add();
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
-        setUrl(propertyValues.get(GET_URL_FIELD_PROP));
+        urlExpression = propertyValues.getAsExpression(GET_URL_FIELD_PROP);
+        projection = FieldProjection.parse(propertyValues.get(FIELDS_TO_KEEP_PROP));
+        int maxInFlight = PropertyValidation.positiveInteger(propertyValues, MAX_IN_FLIGHT_PROP,
+                MAX_IN_FLIGHT_LABEL, DEFAULT_MAX_IN_FLIGHT);
+        Boolean preserveOrder = propertyValues.get(PRESERVE_ORDER_PROP);
+        requestPipeline = new RequestPipeline<>(PIPELINE_NAME, maxInFlight, !Boolean.FALSE.equals(preserveOrder),
+                RequestPipeline.forDocuments((document, result) ->
+                        outputViews.write(documentUtility.newDocument(result)), errorViews));
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? DEFAULT_DEADLINE_SEC :
+                Math.max(0, deadlineValue.intValue())));
     }
 
     private Header[] generateHeaders(List<Header> specificHeaders) {
@@ -69,8 +102,8 @@ public class Get extends SimpleSnap {
         List<Header> specificHeaders = new ArrayList<>();
         Header[] headers = generateHeaders(specificHeaders);
         try {
-            RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpPost.METHOD_NAME,
-                    null, url,RESPONSE_TYPE_MAP);
+            RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpGet.METHOD_NAME,
+                    null, url, RESPONSE_TYPE_MAP, projection);
             StatusLine statusLine = restResponseObject.getStatusLine();
             if (statusLine != null) {
                 LOGGER.error("Failed creating a batch with Http response code {} " +
@@ -86,17 +119,67 @@ public class Get extends SimpleSnap {
                 map = restResponseObject.getBody();
             }
         } catch (IOException ioException) {
+            // Only this URL failed, so its document goes to the error view rather than stopping the pipeline.
             LOGGER.error("Error while fetching Group Data", ioException);
-            throw new ExecutionException(ioException, ERR_FETCHING_DATA_MSG)
-                    .formatWith(ioException.getMessage());
+            throw new SnapDataException(ioException, ERR_FETCHING_DATA_MSG)
+                    .withReason(ioException.getMessage())
+                    .withResolution(ERR_URL_UNREACHABLE_RESOLUTION);
         }
         return map;
     }
 
+    /**
+     * Returns the URLs the document asks for: the evaluated URL, or every element of an evaluated array. Each
+     * must be an absolute URL with a host.
+     */
+    private List<String> evaluateUrls(Document document) {
+        Object value = urlExpression.eval(document);
+        List<String> urls = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                urls.add(element == null ? null : element.toString());
+            }
+        } else {
+            urls.add(value == null ? null : value.toString());
+        }
+        if (urls.isEmpty() || !urls.stream().allMatch(Get::isValidUrl)) {
+            throw new SnapDataException(ERR_SNAP_PROPERTY_MISSING_MSG)
+                    .withReason(String.format(ERR_INVALID_URL_REASON, GET_URL_FIELD_LABEL, value))
+                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION, GET_URL_FIELD_LABEL));
+        }
+        return urls;
+    }
+
+    private static boolean isValidUrl(String url) {
+        if (StringUtils.isBlank(url)) {
+            return false;
+        }
+        try {
+            URI uri = new URI(url);
+            return uri.isAbsolute() && uri.getAuthority() != null;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
     @Override
     protected void process(Document document, String s) {
-        LOGGER.debug("GET URL provided by User: ", getUrl());
-        Map groupData = getData(getUrl());
-        outputViews.write(documentUtility.newDocument(groupData));
+        List<String> urls;
+        try {
+            urls = evaluateUrls(document);
+        } catch (SnapDataException e) {
+            // Queued behind earlier documents, so that output keeps input order.
+            requestPipeline.submitFailed(document, e);
+            return;
+        }
+        LOGGER.debug("GET URLs provided by User: {}", urls);
+        for (String url : urls) {
+            requestPipeline.submit(document, () -> getData(url));
+        }
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+        requestPipeline.run(super::execute);
     }
-}
\ No newline at end of file
+}
@@ -3,9 +3,11 @@ package com.snaplogic.snaps.stf;
 import com.google.inject.Inject;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.FieldProjection;
 import com.snaplogic.snaps.stf.utils.RestUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.StatusLine;
@@ -15,7 +17,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.snaplogic.snaps.stf.Constants.*;
 import static com.snaplogic.snaps.stf.Constants.ERR_FETCHING_DATA_MSG;
@@ -35,6 +45,39 @@ public class GetAnalyticsQueryResults extends SimpleSnap {
     private static final String QUERY_ID_LABEL = "Query Id";
     private static final String QUERY_ID_DESC = "Query Id";
     private String queryId;
+    private static final String STREAM_ROWS_PROP = "streamRows";
+    private static final String STREAM_ROWS_LABEL = "Stream rows";
+    private static final String STREAM_ROWS_DESC = "Write one output document per result row as soon as it is " +
+                                                   "parsed instead of one document with the whole result";
+    private boolean streamRows;
+    private static final String ROWS_FIELD_PROP = "rowsField";
+    private static final String ROWS_FIELD_LABEL = "Rows field";
+    private static final String ROWS_FIELD_DESC = "Field of the query result that holds the array of rows";
+    private static final String DEFAULT_ROWS_FIELD = "data";
+    private String rowsField;
+    private static final String FIELDS_TO_KEEP_ROWS_DESC = "Comma-separated JSON pointers or dotted paths of the " +
+                                                           "fields to keep in every row, other fields are skipped " +
+                                                           "while parsing. Paths are relative to a row in every " +
+                                                           "mode; a whole result keeps only its rows field. Leave " +
+                                                           "empty to keep the whole response";
+    private static final String PAGE_SIZE_PROP = "pageSize";
+    private static final String PAGE_SIZE_LABEL = "Page size";
+    private static final String PAGE_SIZE_DESC = "Number of rows fetched per request, the next page is fetched " +
+                                                 "while the current one is written. 0 fetches the whole result " +
+                                                 "in one request";
+    private static final int DEFAULT_PAGE_SIZE = 0;
+    private int pageSize;
+    private static final String PAGE_RETRIES_PROP = "pageRetries";
+    private static final String PAGE_RETRIES_LABEL = "Page retries";
+    private static final String PAGE_RETRIES_DESC = "Number of times a page that failed with a transient error is " +
+                                                    "fetched again, with backoff, before the snap fails";
+    private static final int DEFAULT_PAGE_RETRIES = 3;
+    private static final int MAX_PAGE_RETRIES = 10;
+    private int pageRetries;
+    private FieldProjection projection;
+    private static final String ERR_ROWS_MISSING_REASON = "The query result has no '%s' array of rows";
+    private static final String ERR_ROWS_MISSING_RESOLUTION = "Ensure that the property %s names the field " +
+                                                              "holding the rows of the query result";
     @Inject
     private RestUtil restUtil;
 
@@ -46,6 +89,29 @@ public class GetAnalyticsQueryResults extends SimpleSnap {
         propertyBuilder.describe(QUERY_ID_PROP, QUERY_ID_LABEL, QUERY_ID_DESC)
                 .required()
                 .add();
+        propertyBuilder.describe(STREAM_ROWS_PROP, STREAM_ROWS_LABEL, STREAM_ROWS_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+        propertyBuilder.describe(ROWS_FIELD_PROP, ROWS_FIELD_LABEL, ROWS_FIELD_DESC)
+                .defaultValue(DEFAULT_ROWS_FIELD)
+                .add();
+        propertyBuilder.describe(FIELDS_TO_KEEP_PROP, FIELDS_TO_KEEP_LABEL, FIELDS_TO_KEEP_ROWS_DESC)
+                .add();
+        propertyBuilder.describe(PAGE_SIZE_PROP, PAGE_SIZE_LABEL, PAGE_SIZE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_PAGE_SIZE)
+                .add();
+        propertyBuilder.describe(PAGE_RETRIES_PROP, PAGE_RETRIES_LABEL, PAGE_RETRIES_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_PAGE_RETRIES)
+                .add();
+        // The deadline covers reading the whole response, which for a streamed or paged result can take any
+        // time, so calls are only bounded when a deadline is set explicitly.
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
     }
 
     @Override
@@ -66,6 +132,24 @@ public class GetAnalyticsQueryResults extends SimpleSnap {
                     .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION,
                             QUERY_ID_LABEL));
         }
+        streamRows = Boolean.TRUE.equals(propertyValues.get(STREAM_ROWS_PROP));
+        rowsField = propertyValues.get(ROWS_FIELD_PROP);
+        if (StringUtils.isBlank(rowsField)) {
+            rowsField = DEFAULT_ROWS_FIELD;
+        }
+        projection = FieldProjection.parse(propertyValues.get(FIELDS_TO_KEEP_PROP));
+        Number pageSizeValue = propertyValues.get(PAGE_SIZE_PROP);
+        pageSize = pageSizeValue == null ? DEFAULT_PAGE_SIZE : Math.max(0, pageSizeValue.intValue());
+        pageRetries = PropertyValidation.integerInRange(propertyValues, PAGE_RETRIES_PROP, PAGE_RETRIES_LABEL,
+                DEFAULT_PAGE_RETRIES, 0, MAX_PAGE_RETRIES);
+        if (pageSize > 0) {
+            // Pages are only retried by RestUtil, which already backs off and leaves alone errors not worth
+            // retrying, so a failed page is not fetched again on top of its attempts.
+            restUtil.setMaxAttempts(1 + pageRetries);
+        }
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? 0 :
+                Math.max(0, deadlineValue.intValue())));
     }
 
     private Map getAnalyticsQueryResults() {
@@ -74,21 +158,9 @@ public class GetAnalyticsQueryResults extends SimpleSnap {
         String getAnalyticsQueryResultsUrl;
         getAnalyticsQueryResultsUrl = String.format(GET_ANALYTICS_QUERY_RESULTS_URL, tenantId, queryId);
         try {
-            RestUtil.RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpGet.METHOD_NAME,
-                    null, getAnalyticsQueryResultsUrl, RESPONSE_TYPE_MAP);
-            StatusLine statusLine = restResponseObject.getStatusLine();
-            if (statusLine != null) {
-                LOGGER.error("Failed while getting analytics query results with Http response code {} and reason {}",
-                        statusLine.getStatusCode(),
-                        statusLine.getReasonPhrase());
-                throw new SnapDataException(ERR_FETCHING_DATA_MSG)
-                        .withReason(String.format(COMMON_REASON,
-                                statusLine.getStatusCode(),
-                                statusLine.getReasonPhrase()))
-                        .withResolution(COMMON_RESOLUTION);
-            } else {
-                map = restResponseObject.getBody();
-            }
+            RestUtil.RestResponseObject restResponseObject = restUtil.invokeSharedHttpCall(HttpGet.METHOD_NAME,
+                    getAnalyticsQueryResultsUrl, RESPONSE_TYPE_MAP, rowsProjection());
+            map = checkResponse(restResponseObject);
         } catch (IOException ioException) {
             LOGGER.error("Error while getting analytics query results", ioException);
             throw new ExecutionException(ioException, ERR_FETCHING_DATA_MSG)
@@ -98,11 +170,138 @@ public class GetAnalyticsQueryResults extends SimpleSnap {
         return map;
     }
 
+    private void streamAnalyticsQueryResults() {
+        LOGGER.info("Start of GetAnalyticsQueryResults:streamAnalyticsQueryResults() Method");
+        String getAnalyticsQueryResultsUrl;
+        getAnalyticsQueryResultsUrl = String.format(GET_ANALYTICS_QUERY_RESULTS_URL, tenantId, queryId);
+        try {
+            RestUtil.RestResponseObject restResponseObject = restUtil.streamHttpCall(HttpGet.METHOD_NAME,
+                    getAnalyticsQueryResultsUrl, rowsField, projection,
+                    row -> outputViews.write(documentUtility.newDocument(row)));
+            Map metadata = checkResponse(restResponseObject);
+            if (!restResponseObject.isRowsFound()) {
+                throw rowsMissing();
+            }
+            LOGGER.debug("Analytics query {} returned metadata {}", queryId, metadata);
+        } catch (IOException ioException) {
+            LOGGER.error("Error while streaming analytics query results", ioException);
+            throw new ExecutionException(ioException, ERR_FETCHING_DATA_MSG)
+                    .formatWith(ioException.getMessage());
+        }
+        LOGGER.info("End of GetAnalyticsQueryResults:streamAnalyticsQueryResults() Method");
+    }
+
+    private void pageAnalyticsQueryResults() {
+        LOGGER.info("Start of GetAnalyticsQueryResults:pageAnalyticsQueryResults() Method");
+        ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stf-analytics-page-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int page = 0;
+            Future<List<Map>> nextPage = prefetchPage(prefetchExecutor, page);
+            while (nextPage != null) {
+                List<Map> rows = awaitPage(nextPage);
+                // A short page is the last one; otherwise start fetching the next page before writing this one.
+                nextPage = rows.size() < pageSize ? null : prefetchPage(prefetchExecutor, page + 1);
+                for (Map row : rows) {
+                    outputViews.write(documentUtility.newDocument(row));
+                }
+                page++;
+            }
+        } catch (IOException ioException) {
+            LOGGER.error("Error while paging analytics query results", ioException);
+            throw new ExecutionException(ioException, ERR_FETCHING_DATA_MSG)
+                    .formatWith(ioException.getMessage());
+        } finally {
+            prefetchExecutor.shutdownNow();
+        }
+        LOGGER.info("End of GetAnalyticsQueryResults:pageAnalyticsQueryResults() Method");
+    }
+
+    private Future<List<Map>> prefetchPage(ExecutorService prefetchExecutor, final int page) {
+        return prefetchExecutor.submit(() -> fetchPage(page));
+    }
+
+    private List<Map> awaitPage(Future<List<Map>> prefetchedPage) throws IOException {
+        try {
+            return prefetchedPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (java.util.concurrent.ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) cause;
+        }
+    }
+
+    private List<Map> fetchPage(int page) throws IOException {
+        String pageUrl = String.format(GET_ANALYTICS_QUERY_RESULTS_PAGE_URL, tenantId, queryId, page, pageSize);
+        RestUtil.RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpGet.METHOD_NAME, null,
+                pageUrl, RESPONSE_TYPE_MAP, rowsProjection());
+        Object rows = checkResponse(restResponseObject).get(rowsField);
+        if (!(rows instanceof List)) {
+            throw rowsMissing();
+        }
+        List<Map> pageRows = new ArrayList<>(((List<?>) rows).size());
+        for (Object row : (List<?>) rows) {
+            if (row instanceof Map) {
+                pageRows.add((Map) row);
+            } else {
+                // Same shape as rows of a streamed result.
+                Map<String, Object> wrapped = new LinkedHashMap<>();
+                wrapped.put(RestUtil.ROW_VALUE_KEY, row);
+                pageRows.add(wrapped);
+            }
+        }
+        return pageRows;
+    }
+
+    /**
+     * Applies the projection to every row of a response holding the rows field, the same as to streamed rows.
+     */
+    private FieldProjection rowsProjection() {
+        return projection == null ? null : projection.nestedUnder(rowsField);
+    }
+
+    private SnapDataException rowsMissing() {
+        return new SnapDataException(ERR_FETCHING_DATA_MSG)
+                .withReason(String.format(ERR_ROWS_MISSING_REASON, rowsField))
+                .withResolution(String.format(ERR_ROWS_MISSING_RESOLUTION, ROWS_FIELD_LABEL));
+    }
+
+    private Map checkResponse(RestUtil.RestResponseObject restResponseObject) {
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine != null) {
+            LOGGER.error("Failed while getting analytics query results with Http response code {} and reason {}",
+                    statusLine.getStatusCode(),
+                    statusLine.getReasonPhrase());
+            throw new SnapDataException(ERR_FETCHING_DATA_MSG)
+                    .withReason(String.format(COMMON_REASON,
+                            statusLine.getStatusCode(),
+                            statusLine.getReasonPhrase()))
+                    .withResolution(COMMON_RESOLUTION);
+        }
+        return restResponseObject.getBody();
+    }
+
     @Override
     protected void process(Document document, String s) {
         LOGGER.info("Start of GetAnalyticsQueryResults:process() Method");
-        Map analyticsQueryResults = getAnalyticsQueryResults();
-        outputViews.write(documentUtility.newDocument(analyticsQueryResults));
+        if (pageSize > 0) {
+            pageAnalyticsQueryResults();
+        } else if (streamRows) {
+            streamAnalyticsQueryResults();
+        } else {
+            Map analyticsQueryResults = getAnalyticsQueryResults();
+            outputViews.write(documentUtility.newDocument(analyticsQueryResults));
+        }
         LOGGER.info("End of GetAnalyticsQueryResults:process() Method");
     }
 }
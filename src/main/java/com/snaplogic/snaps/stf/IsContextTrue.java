@@ -1,11 +1,15 @@
 package com.snaplogic.snaps.stf;
 
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.RefreshAheadCache;
+import com.snaplogic.snaps.stf.utils.RequestPipeline;
 import com.snaplogic.snaps.stf.utils.RestUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.StatusLine;
@@ -15,6 +19,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.snaplogic.snaps.stf.Constants.*;
 import static com.snaplogic.snaps.stf.Constants.ERR_FETCHING_DATA_MSG;
@@ -34,6 +39,15 @@ public class IsContextTrue extends SimpleSnap {
     private static final String CONTEXT_ID_LABEL = "Context Id";
     private static final String CONTEXT_ID_DESC = "Context Id";
     private String contextId;
+    private static final String CACHE_TTL_PROP = "cacheTtlSec";
+    private static final String CACHE_TTL_LABEL = "Cache TTL (seconds)";
+    private static final String CACHE_TTL_DESC = "How long an evaluation result is reused for the same tenant and " +
+                                                 "context, results in use are re-evaluated in the background " +
+                                                 "before they expire. 0 disables the cache";
+    private static final int DEFAULT_CACHE_TTL_SEC = 0;
+    private RefreshAheadCache<String, Map> evaluationCache;
+    private static final String PIPELINE_NAME = "is-context-true";
+    private RequestPipeline<Document, Map> requestPipeline;
     @Inject
     private RestUtil restUtil;
 
@@ -45,6 +59,30 @@ public class IsContextTrue extends SimpleSnap {
         propertyBuilder.describe(CONTEXT_ID_PROP, CONTEXT_ID_LABEL, CONTEXT_ID_DESC)
                 .required()
                 .add();
+        propertyBuilder.describe(MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL, MAX_IN_FLIGHT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAX_IN_FLIGHT)
+                .add();
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_LABEL, PRESERVE_ORDER_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+        propertyBuilder.describe(CACHE_TTL_PROP, CACHE_TTL_LABEL, CACHE_TTL_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_CACHE_TTL_SEC)
+                .add();
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_DEADLINE_SEC)
+                .add();
+        propertyBuilder.describe(HEDGE_PERCENTILE_PROP, HEDGE_PERCENTILE_LABEL, HEDGE_PERCENTILE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
+        propertyBuilder.describe(HEDGE_MAX_PERCENT_PROP, HEDGE_MAX_PERCENT_LABEL, HEDGE_MAX_PERCENT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_HEDGE_MAX_PERCENT)
+                .add();
     }
 
     @Override
@@ -65,16 +103,34 @@ public class IsContextTrue extends SimpleSnap {
                     .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION,
                             CONTEXT_ID_LABEL));
         }
+        int maxInFlight = PropertyValidation.positiveInteger(propertyValues, MAX_IN_FLIGHT_PROP,
+                MAX_IN_FLIGHT_LABEL, DEFAULT_MAX_IN_FLIGHT);
+        Number cacheTtl = propertyValues.get(CACHE_TTL_PROP);
+        if (cacheTtl != null && cacheTtl.longValue() > 0) {
+            evaluationCache = new RefreshAheadCache<>(this::isContextTrue,
+                    TimeUnit.SECONDS.toMillis(cacheTtl.longValue()));
+        }
+        Boolean preserveOrder = propertyValues.get(PRESERVE_ORDER_PROP);
+        requestPipeline = new RequestPipeline<>(PIPELINE_NAME, maxInFlight, !Boolean.FALSE.equals(preserveOrder),
+                RequestPipeline.forDocuments((document, result) ->
+                        outputViews.write(documentUtility.newDocument(result)), errorViews));
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? DEFAULT_DEADLINE_SEC :
+                Math.max(0, deadlineValue.intValue())));
+        Number hedgePercentileValue = propertyValues.get(HEDGE_PERCENTILE_PROP);
+        Number hedgeMaxPercentValue = propertyValues.get(HEDGE_MAX_PERCENT_PROP);
+        restUtil.setHedging(hedgePercentileValue == null ? 0 :
+                        Math.max(0, Math.min(100, hedgePercentileValue.intValue())),
+                hedgeMaxPercentValue == null ? DEFAULT_HEDGE_MAX_PERCENT :
+                        Math.max(0, hedgeMaxPercentValue.intValue()));
     }
 
-    private Map isContextTrue() {
+    private Map isContextTrue(String isContextTrueUrl) {
         LOGGER.info("Start of IsContextTrue:isContextTrue() Method");
         Map map;
-        String isContextTrueUrl;
-        isContextTrueUrl = String.format(IS_CONTEXT_TRUE_URL, tenantId, contextId);
         try {
-            RestUtil.RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpPost.METHOD_NAME,
-                    null, isContextTrueUrl, RESPONSE_TYPE_STRING);
+            RestUtil.RestResponseObject restResponseObject = restUtil.invokeSharedHttpCall(HttpPost.METHOD_NAME,
+                    isContextTrueUrl, RESPONSE_TYPE_STRING);
             StatusLine statusLine = restResponseObject.getStatusLine();
             if (statusLine != null) {
                 LOGGER.error("Failed checking is context true or not with Http response code {} and reason {}",
@@ -100,8 +156,28 @@ public class IsContextTrue extends SimpleSnap {
     @Override
     protected void process(Document document, String s) {
         LOGGER.info("Start of IsContextTrue:process() Method");
-        Map isEntityPartOfGroup = isContextTrue();
-        outputViews.write(documentUtility.newDocument(isEntityPartOfGroup));
+        final String isContextTrueUrl = String.format(IS_CONTEXT_TRUE_URL, tenantId, contextId);
+        if (evaluationCache == null) {
+            requestPipeline.submit(document, () -> isContextTrue(isContextTrueUrl));
+        } else {
+            Map evaluation = evaluationCache.getIfPresent(isContextTrueUrl);
+            if (evaluation != null) {
+                requestPipeline.submitCompleted(document, Maps.newHashMap(evaluation));
+            } else {
+                requestPipeline.submit(document, () -> Maps.newHashMap(evaluationCache.get(isContextTrueUrl)));
+            }
+        }
         LOGGER.info("End of IsContextTrue:process() Method");
     }
+
+    @Override
+    public void execute() throws ExecutionException {
+        try {
+            requestPipeline.run(super::execute);
+        } finally {
+            if (evaluationCache != null) {
+                evaluationCache.close();
+            }
+        }
+    }
 }
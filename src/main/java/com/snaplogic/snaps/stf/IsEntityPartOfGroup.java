@@ -1,21 +1,42 @@
 package com.snaplogic.snaps.stf;
 
+import com.google.common.collect.Maps;
+import com.google.common.net.UrlEscapers;
 import com.google.inject.Inject;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.ExpiringCache;
+import com.snaplogic.snaps.stf.utils.FieldProjection;
+import com.snaplogic.snaps.stf.utils.MembershipIndex;
+import com.snaplogic.snaps.stf.utils.MembershipIndexes;
+import com.snaplogic.snaps.stf.utils.MicroBatcher;
+import com.snaplogic.snaps.stf.utils.RequestPipeline;
 import com.snaplogic.snaps.stf.utils.RestUtil;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.snaplogic.snaps.stf.Constants.*;
 
@@ -29,67 +50,376 @@ public class IsEntityPartOfGroup extends SimpleSnap {
     private static final String TENANT_ID_PROP = "tenantId";
     private static final String TENANT_ID_LABEL = "Tenant Id";
     private static final String TENANT_ID_DESC = "Tenant Id";
-    private String tenantId;
+    private ExpressionProperty tenantIdExpression;
     private static final String SCHEMA_ID_PROP = "schemaId";
     private static final String SCHEMA_ID_LABEL = "Schema Id";
     private static final String SCHEMA_ID_DESC = "Schema Id";
-    private String schemaId;
+    private ExpressionProperty schemaIdExpression;
     private static final String ENTITY_ID_PROP = "entityId";
     private static final String ENTITY_ID_LABEL = "Entity Id";
     private static final String ENTITY_ID_DESC = "Entity Id";
-    private String entityId;
+    private ExpressionProperty entityIdExpression;
+    private static final String BATCH_SIZE_PROP = "batchSize";
+    private static final String BATCH_SIZE_LABEL = "Batch size";
+    private static final String BATCH_SIZE_DESC = "Number of entity ids checked together in one bulk lookup, " +
+                                                  "1 checks every document with its own request";
+    private static final int DEFAULT_BATCH_SIZE = 1;
+    private int batchSize;
+    private static final String BATCH_WINDOW_PROP = "batchWindowMillis";
+    private static final String BATCH_WINDOW_LABEL = "Batch window (ms)";
+    private static final String BATCH_WINDOW_DESC = "Maximum time a document waits for its batch to fill up " +
+                                                    "before the bulk lookup is sent";
+    private static final int DEFAULT_BATCH_WINDOW_MILLIS = 100;
+    private static final String BATCH_FLUSH_THREAD_NAME = "stf-is-entity-part-of-group-batch-flush";
+    private long batchWindowMillis;
+    private ScheduledExecutorService batchFlusher;
+    private volatile RuntimeException batchFlushFailure;
+    private static final String CACHE_TTL_PROP = "cacheTtlSec";
+    private static final String CACHE_TTL_LABEL = "Cache TTL (seconds)";
+    private static final String CACHE_TTL_DESC = "How long a membership answer is reused for the same tenant, " +
+                                                 "schema and entity, 0 disables the cache";
+    private static final int DEFAULT_CACHE_TTL_SEC = 0;
+    private static final String NEGATIVE_CACHE_TTL_PROP = "negativeCacheTtlSec";
+    private static final String NEGATIVE_CACHE_TTL_LABEL = "Negative cache TTL (seconds)";
+    private static final String NEGATIVE_CACHE_TTL_DESC = "How long a 'not a member' answer is reused, " +
+                                                          "0 never caches it";
+    private static final int DEFAULT_NEGATIVE_CACHE_TTL_SEC = 0;
+    private static final String CACHE_MAX_ENTRIES_PROP = "cacheMaxEntries";
+    private static final String CACHE_MAX_ENTRIES_LABEL = "Cache max entries";
+    private static final String CACHE_MAX_ENTRIES_DESC = "Maximum number of membership answers kept on the node, " +
+                                                         "least recently used answers are evicted first";
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    private static final String CACHE_NAME = "is-entity-part-of-group";
+    private ExpiringCache<List<String>, Object> membershipCache;
+    private static final String PREFETCH_PROP = "prefetchMembers";
+    private static final String PREFETCH_LABEL = "Prefetch members";
+    private static final String PREFETCH_DESC = "Download all members of each tenant/schema once and check " +
+                                                "documents against the local copy. Answers then only carry " +
+                                                "isPartOfGroup, whether they come from the local copy or not";
+    private static final String PREFETCH_REFRESH_PROP = "prefetchRefreshSec";
+    private static final String PREFETCH_REFRESH_LABEL = "Prefetch refresh (seconds)";
+    private static final String PREFETCH_REFRESH_DESC = "Interval at which prefetched members are downloaded " +
+                                                        "again, 0 never refreshes them";
+    private static final int DEFAULT_PREFETCH_REFRESH_SEC = 300;
+    private static final String PREFETCH_MEMORY_PROP = "prefetchMemoryLimitMb";
+    private static final String PREFETCH_MEMORY_LABEL = "Prefetch memory limit (MB)";
+    private static final String PREFETCH_MEMORY_DESC = "Memory the prefetched members may use, groups that do " +
+                                                       "not fit are checked with remote lookups";
+    private static final int DEFAULT_PREFETCH_MEMORY_MB = 64;
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    private static final String ERR_MEMBERS_MISSING_MSG = "Group members response has no '%s' list";
+    private static final String PROJECTION_SEPARATOR = ",";
+    private static final String ERR_BATCH_FLUSHER_INTERRUPTED_MSG = "Interrupted while waiting for the batch " +
+                                                                    "flusher to finish";
+    private static final long BATCH_FLUSHER_WAIT_SEC = 10;
+    private static final String ERR_MEMBERS_FAILED_MSG = "Group members request failed with %d %s";
+    private MembershipIndexes<List<String>> memberIndexes;
+    private static final String ERR_MEMBERSHIP_MISSING_REASON = "No group membership returned for entity %s";
+    private static final String ERR_MEMBERSHIP_MISSING_RESOLUTION = "Ensure that the entity exists in the schema";
+    private FieldProjection projection;
+    private static final String PIPELINE_NAME = "is-entity-part-of-group";
+    private MicroBatcher<List<String>, MembershipLookup> microBatcher;
+    private RequestPipeline<List<MembershipLookup>, Map> requestPipeline;
+    private boolean preserveOrder;
+    private final Deque<MembershipLookup> unwritten = new ArrayDeque<>();
+    private final Object outputLock = new Object();
     @Inject
     private RestUtil restUtil;
 
+    /**
+     * Membership check of one input document, holding its answer until the document can be written.
+     */
+    private static class MembershipLookup {
+        private final Document document;
+        private final String tenantId;
+        private final String schemaId;
+        private final String entityId;
+        private boolean answered;
+        private Object membership;
+        private SnapDataException error;
+
+        MembershipLookup(Document document, String tenantId, String schemaId, String entityId) {
+            this.document = document;
+            this.tenantId = tenantId;
+            this.schemaId = schemaId;
+            this.entityId = entityId;
+        }
+
+        // Ids may contain any character, so keys are lists rather than joined strings.
+        List<String> getGroupKey() {
+            return Arrays.asList(tenantId, schemaId);
+        }
+
+        List<String> getCacheKey() {
+            return Arrays.asList(tenantId, schemaId, entityId);
+        }
+    }
+
     @Override
     public void defineProperties(PropertyBuilder propertyBuilder) {
         propertyBuilder.describe(TENANT_ID_PROP, TENANT_ID_LABEL, TENANT_ID_DESC)
                 .required()
+                .expression()
                 .add();
         propertyBuilder.describe(SCHEMA_ID_PROP, SCHEMA_ID_LABEL, SCHEMA_ID_DESC)
                 .required()
+                .expression()
                 .add();
         propertyBuilder.describe(ENTITY_ID_PROP, ENTITY_ID_LABEL, ENTITY_ID_DESC)
                 .required()
+                .expression()
+                .add();
+        propertyBuilder.describe(FIELDS_TO_KEEP_PROP, FIELDS_TO_KEEP_LABEL, FIELDS_TO_KEEP_DESC)
+                .add();
+        propertyBuilder.describe(MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL, MAX_IN_FLIGHT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAX_IN_FLIGHT)
+                .add();
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_LABEL, PRESERVE_ORDER_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+        propertyBuilder.describe(BATCH_SIZE_PROP, BATCH_SIZE_LABEL, BATCH_SIZE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_BATCH_SIZE)
+                .add();
+        propertyBuilder.describe(BATCH_WINDOW_PROP, BATCH_WINDOW_LABEL, BATCH_WINDOW_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_BATCH_WINDOW_MILLIS)
+                .add();
+        propertyBuilder.describe(CACHE_TTL_PROP, CACHE_TTL_LABEL, CACHE_TTL_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_CACHE_TTL_SEC)
+                .add();
+        propertyBuilder.describe(NEGATIVE_CACHE_TTL_PROP, NEGATIVE_CACHE_TTL_LABEL, NEGATIVE_CACHE_TTL_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_NEGATIVE_CACHE_TTL_SEC)
+                .add();
+        propertyBuilder.describe(CACHE_MAX_ENTRIES_PROP, CACHE_MAX_ENTRIES_LABEL, CACHE_MAX_ENTRIES_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_CACHE_MAX_ENTRIES)
+                .add();
+        propertyBuilder.describe(PREFETCH_PROP, PREFETCH_LABEL, PREFETCH_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+        propertyBuilder.describe(PREFETCH_REFRESH_PROP, PREFETCH_REFRESH_LABEL, PREFETCH_REFRESH_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_PREFETCH_REFRESH_SEC)
+                .add();
+        propertyBuilder.describe(PREFETCH_MEMORY_PROP, PREFETCH_MEMORY_LABEL, PREFETCH_MEMORY_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_PREFETCH_MEMORY_MB)
+                .add();
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_DEADLINE_SEC)
+                .add();
+        propertyBuilder.describe(HEDGE_PERCENTILE_PROP, HEDGE_PERCENTILE_LABEL, HEDGE_PERCENTILE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
+        propertyBuilder.describe(HEDGE_MAX_PERCENT_PROP, HEDGE_MAX_PERCENT_LABEL, HEDGE_MAX_PERCENT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_HEDGE_MAX_PERCENT)
                 .add();
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
-        tenantId = propertyValues.get(TENANT_ID_PROP);
-        if (StringUtils.isBlank(tenantId)) {
-            throw new ConfigurationException(ERR_SNAP_PROPERTY_MISSING_MSG)
-                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON,
-                            TENANT_ID_LABEL))
-                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION,
-                            TENANT_ID_LABEL));
-        }
-        schemaId = propertyValues.get(SCHEMA_ID_PROP);
-        if (StringUtils.isBlank(schemaId)) {
-            throw new ConfigurationException(ERR_SNAP_PROPERTY_MISSING_MSG)
-                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON,
-                            SCHEMA_ID_LABEL))
-                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION,
-                            SCHEMA_ID_LABEL));
-        }
-        entityId = propertyValues.get(ENTITY_ID_PROP);
-        if (StringUtils.isBlank(entityId)) {
-            throw new ConfigurationException(ERR_SNAP_PROPERTY_MISSING_MSG)
-                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON,
-                            ENTITY_ID_LABEL))
-                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION,
-                            ENTITY_ID_LABEL));
-        }
-    }
-
-    private Map isEntityPartOfGroup() {
+        tenantIdExpression = propertyValues.getAsExpression(TENANT_ID_PROP);
+        schemaIdExpression = propertyValues.getAsExpression(SCHEMA_ID_PROP);
+        entityIdExpression = propertyValues.getAsExpression(ENTITY_ID_PROP);
+        Boolean prefetch = propertyValues.get(PREFETCH_PROP);
+        String fieldsToKeep = propertyValues.get(FIELDS_TO_KEEP_PROP);
+        if (Boolean.TRUE.equals(prefetch)) {
+            // Answers from the local copy only know membership, so remote answers are cut down to the same shape.
+            projection = FieldProjection.parse(IS_PART_OF_GROUP_KEY);
+        } else if (StringUtils.isNotBlank(fieldsToKeep)) {
+            // Negative answers are recognised, and cached for their own time, by isPartOfGroup.
+            projection = FieldProjection.parse(fieldsToKeep + PROJECTION_SEPARATOR + IS_PART_OF_GROUP_KEY);
+        } else {
+            projection = null;
+        }
+        int maxInFlight = PropertyValidation.positiveInteger(propertyValues, MAX_IN_FLIGHT_PROP,
+                MAX_IN_FLIGHT_LABEL, DEFAULT_MAX_IN_FLIGHT);
+        batchSize = PropertyValidation.positiveInteger(propertyValues, BATCH_SIZE_PROP, BATCH_SIZE_LABEL,
+                DEFAULT_BATCH_SIZE);
+        Number batchWindow = propertyValues.get(BATCH_WINDOW_PROP);
+        batchWindowMillis = batchWindow == null ? DEFAULT_BATCH_WINDOW_MILLIS : Math.max(0, batchWindow.longValue());
+        microBatcher = new MicroBatcher<>(batchSize, batchWindowMillis);
+        long cacheTtlSec = PropertyValidation.nonNegativeInteger(propertyValues, CACHE_TTL_PROP, CACHE_TTL_LABEL,
+                DEFAULT_CACHE_TTL_SEC);
+        long negativeCacheTtlSec = PropertyValidation.nonNegativeInteger(propertyValues, NEGATIVE_CACHE_TTL_PROP,
+                NEGATIVE_CACHE_TTL_LABEL, DEFAULT_NEGATIVE_CACHE_TTL_SEC);
+        int cacheMaxEntries = PropertyValidation.nonNegativeInteger(propertyValues, CACHE_MAX_ENTRIES_PROP,
+                CACHE_MAX_ENTRIES_LABEL, DEFAULT_CACHE_MAX_ENTRIES);
+        if (cacheTtlSec > 0 || negativeCacheTtlSec > 0) {
+            // Answers parsed with different projections must not be served to each other.
+            membershipCache = ExpiringCache.shared(CACHE_NAME + FORWARD_SLASH + projection,
+                    TimeUnit.SECONDS.toMillis(cacheTtlSec), TimeUnit.SECONDS.toMillis(negativeCacheTtlSec),
+                    cacheMaxEntries);
+        }
+        if (Boolean.TRUE.equals(prefetch)) {
+            Number prefetchRefresh = propertyValues.get(PREFETCH_REFRESH_PROP);
+            Number prefetchMemory = propertyValues.get(PREFETCH_MEMORY_PROP);
+            memberIndexes = new MembershipIndexes<>(this::fetchGroupMembers,
+                    (prefetchMemory == null ? DEFAULT_PREFETCH_MEMORY_MB : prefetchMemory.longValue()) *
+                            BYTES_PER_MB,
+                    TimeUnit.SECONDS.toMillis(prefetchRefresh == null ? DEFAULT_PREFETCH_REFRESH_SEC :
+                            prefetchRefresh.longValue()));
+        }
+        preserveOrder = !Boolean.FALSE.equals(propertyValues.get(PRESERVE_ORDER_PROP));
+        requestPipeline = newRequestPipeline(maxInFlight, preserveOrder);
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? DEFAULT_DEADLINE_SEC :
+                Math.max(0, deadlineValue.intValue())));
+        Number hedgePercentileValue = propertyValues.get(HEDGE_PERCENTILE_PROP);
+        Number hedgeMaxPercentValue = propertyValues.get(HEDGE_MAX_PERCENT_PROP);
+        restUtil.setHedging(hedgePercentileValue == null ? 0 :
+                        Math.max(0, Math.min(100, hedgePercentileValue.intValue())),
+                hedgeMaxPercentValue == null ? DEFAULT_HEDGE_MAX_PERCENT :
+                        Math.max(0, hedgeMaxPercentValue.intValue()));
+    }
+
+    /**
+     * Answers the documents of each completed lookup. The pipeline keeps lookups in submission order, but the
+     * documents of a batch can be older than those of an earlier batch, so documents are put back into input
+     * order by {@link #answer}.
+     */
+    private RequestPipeline<List<MembershipLookup>, Map> newRequestPipeline(int maxInFlight,
+                                                                           boolean preserveOrder) {
+        return new RequestPipeline<>(PIPELINE_NAME, maxInFlight, preserveOrder,
+                new RequestPipeline.Handler<List<MembershipLookup>, Map>() {
+                    @Override
+                    public void onResult(List<MembershipLookup> lookups, Map memberships) {
+                        for (MembershipLookup lookup : lookups) {
+                            answer(lookup, memberships.get(lookup.entityId), null);
+                        }
+                    }
+
+                    @Override
+                    public void onError(List<MembershipLookup> lookups, RuntimeException error) {
+                        if (!(error instanceof SnapDataException)) {
+                            throw error;
+                        }
+                        for (MembershipLookup lookup : lookups) {
+                            answer(lookup, null, (SnapDataException) error);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Records the answer of a lookup and writes it, after every earlier document when order is preserved.
+     */
+    private void answer(MembershipLookup lookup, Object membership, SnapDataException error) {
+        lookup.membership = membership;
+        lookup.error = error;
+        lookup.answered = true;
+        if (!preserveOrder) {
+            write(lookup);
+            return;
+        }
+        while (!unwritten.isEmpty() && unwritten.peek().answered) {
+            write(unwritten.poll());
+        }
+    }
+
+    private void write(MembershipLookup lookup) {
+        if (lookup.error != null) {
+            errorViews.write(lookup.error, lookup.document);
+        } else {
+            writeMembership(lookup, lookup.membership);
+        }
+    }
+
+    private void writeMembership(MembershipLookup lookup, Object membership) {
+        if (membership instanceof Map) {
+            // Copy so documents sharing an entity id in one batch never share a mutable map.
+            outputViews.write(documentUtility.newDocument(Maps.newLinkedHashMap((Map) membership)));
+        } else if (membership != null) {
+            Map map = Maps.newLinkedHashMap();
+            map.put(IS_PART_OF_GROUP_KEY, membership);
+            outputViews.write(documentUtility.newDocument(map));
+        } else {
+            errorViews.write(new SnapDataException(ERR_FETCHING_DATA_MSG)
+                    .withReason(String.format(ERR_MEMBERSHIP_MISSING_REASON, lookup.entityId))
+                    .withResolution(ERR_MEMBERSHIP_MISSING_RESOLUTION), lookup.document);
+        }
+    }
+
+    private String evaluate(ExpressionProperty expression, Document document, String label) {
+        Object value = expression.eval(document);
+        if (value == null || StringUtils.isBlank(value.toString())) {
+            throw new SnapDataException(ERR_SNAP_PROPERTY_MISSING_MSG)
+                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON, label))
+                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION, label));
+        }
+        return value.toString();
+    }
+
+    private Map isEntityPartOfGroup(MembershipLookup lookup) {
         LOGGER.info("Start of IsEntityPartOfGroup:isEntityPartOfGroup() Method");
-        Map map;
         String isEntityPartOfGroupUrl;
-        isEntityPartOfGroupUrl = String.format(IS_ENTITY_PART_OF_GROUP_URL, tenantId, schemaId, entityId);
+        isEntityPartOfGroupUrl = String.format(IS_ENTITY_PART_OF_GROUP_URL, lookup.tenantId, lookup.schemaId,
+                UrlEscapers.urlPathSegmentEscaper().escape(lookup.entityId));
+        Map map = fetchMembership(HttpGet.METHOD_NAME, null, isEntityPartOfGroupUrl, projection);
+        cacheMembership(lookup, map);
+        LOGGER.info("End of IsEntityPartOfGroup:isEntityPartOfGroup() Method");
+        return Collections.singletonMap(lookup.entityId, map);
+    }
+
+    private Map areEntitiesPartOfGroup(List<MembershipLookup> lookups) throws IOException {
+        MembershipLookup first = lookups.get(0);
+        Set<String> entityIds = new LinkedHashSet<>();
+        for (MembershipLookup lookup : lookups) {
+            entityIds.add(lookup.entityId);
+        }
+        LOGGER.debug("Checking group membership of {} entities in schema {}", entityIds.size(), first.schemaId);
+        String bulkUrl = String.format(IS_ENTITY_PART_OF_GROUP_BULK_URL, first.tenantId, first.schemaId);
+        Map memberships = fetchMembership(HttpPost.METHOD_NAME, RestUtil.toJsonEntity(entityIds), bulkUrl,
+                projection == null ? null : projection.underEveryField());
+        for (MembershipLookup lookup : lookups) {
+            cacheMembership(lookup, memberships.get(lookup.entityId));
+        }
+        return memberships;
+    }
+
+    /**
+     * Streams the member ids of the group into the builder, which stops keeping them once over its ceiling.
+     */
+    private void fetchGroupMembers(List<String> groupKey, MembershipIndex.Builder members) throws IOException {
+        String membersUrl = String.format(IS_ENTITY_PART_OF_GROUP_BULK_URL, groupKey.get(0), groupKey.get(1));
+        RestUtil.RestResponseObject restResponseObject = restUtil.streamHttpCall(HttpGet.METHOD_NAME,
+                membersUrl, GROUP_MEMBERS_KEY, row -> members.add(row.get(RestUtil.ROW_VALUE_KEY)));
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine != null) {
+            throw new IOException(String.format(ERR_MEMBERS_FAILED_MSG, statusLine.getStatusCode(),
+                    statusLine.getReasonPhrase()));
+        }
+        if (!restResponseObject.isRowsFound()) {
+            throw new IOException(String.format(ERR_MEMBERS_MISSING_MSG, GROUP_MEMBERS_KEY));
+        }
+    }
+
+    private void cacheMembership(MembershipLookup lookup, Object membership) {
+        if (membershipCache != null && membership != null) {
+            membershipCache.put(lookup.getCacheKey(), membership, isNotMember(membership));
+        }
+    }
+
+    private static boolean isNotMember(Object membership) {
+        Object flag = membership instanceof Map ? ((Map) membership).get(IS_PART_OF_GROUP_KEY) : membership;
+        return Boolean.FALSE.equals(flag);
+    }
+
+    private Map fetchMembership(String httpMethod, HttpEntity payload, String url, FieldProjection projection) {
+        Map map;
         try {
-            RestUtil.RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpGet.METHOD_NAME,
-                    null, isEntityPartOfGroupUrl, RESPONSE_TYPE_MAP);
+            RestUtil.RestResponseObject restResponseObject = payload == null ?
+                    restUtil.invokeSharedHttpCall(httpMethod, url, RESPONSE_TYPE_MAP, projection) :
+                    restUtil.invokeHttpCall(httpMethod, payload, url, RESPONSE_TYPE_MAP, projection);
             StatusLine statusLine = restResponseObject.getStatusLine();
             if (statusLine != null) {
                 LOGGER.error("Failed checking entity part of group or not with Http response code {} and reason {}",
@@ -108,16 +438,143 @@ public class IsEntityPartOfGroup extends SimpleSnap {
             throw new ExecutionException(ioException, ERR_FETCHING_DATA_MSG)
                     .formatWith(ioException.getMessage());
         }
-        LOGGER.info("End of IsEntityPartOfGroup:isEntityPartOfGroup() Method");
         return map;
     }
 
-    @Override
+    private void submitBatch(final List<MembershipLookup> lookups) {
+        requestPipeline.submit(lookups, () -> areEntitiesPartOfGroup(lookups));
+    }
+
+    /**
+     * Sends the batches whose window has passed and writes the answers that have arrived. Runs on the batch
+     * flush thread while the snap thread waits for input, so that documents are not held until the next one
+     * arrives; {@link #outputLock} keeps it from running alongside {@link #process}.
+     */
+    private void flushExpiredBatches() {
+        synchronized (outputLock) {
+            try {
+                for (List<MembershipLookup> batch : microBatcher.expired()) {
+                    submitBatch(batch);
+                }
+                requestPipeline.poll();
+            } catch (RuntimeException e) {
+                batchFlushFailure = e;
+                throw e;
+            }
+        }
+    }
+
+    private void startBatchFlusher() {
+        if (batchSize > 1 && batchWindowMillis > 0) {
+            batchFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, BATCH_FLUSH_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+            batchFlusher.scheduleWithFixedDelay(this::flushExpiredBatches, batchWindowMillis, batchWindowMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopBatchFlusher() {
+        if (batchFlusher != null) {
+            batchFlusher.shutdown();
+            // Wait for a flush that has already started, or been taken off the queue, so that nothing touches
+            // the pipeline from the flusher thread once the remaining batches are drained.
+            try {
+                while (!batchFlusher.awaitTermination(BATCH_FLUSHER_WAIT_SEC, TimeUnit.SECONDS)) {
+                    LOGGER.debug("Waiting for the batch flusher to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException(e, ERR_BATCH_FLUSHER_INTERRUPTED_MSG);
+            }
+            batchFlusher = null;
+        }
+        checkBatchFlush();
+    }
 
+    private void checkBatchFlush() {
+        RuntimeException failure = batchFlushFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
     protected void process(Document document, String s) {
         LOGGER.info("Start of IsEntityPartOfGroup:process() Method");
-        Map isEntityPartOfGroup = isEntityPartOfGroup();
-        outputViews.write(documentUtility.newDocument(isEntityPartOfGroup));
+        synchronized (outputLock) {
+            checkBatchFlush();
+            lookUp(document);
+        }
         LOGGER.info("End of IsEntityPartOfGroup:process() Method");
     }
+
+    private void lookUp(Document document) {
+        MembershipLookup lookup;
+        SnapDataException evaluationError = null;
+        try {
+            lookup = new MembershipLookup(document,
+                    evaluate(tenantIdExpression, document, TENANT_ID_LABEL),
+                    evaluate(schemaIdExpression, document, SCHEMA_ID_LABEL),
+                    evaluate(entityIdExpression, document, ENTITY_ID_LABEL));
+        } catch (SnapDataException e) {
+            lookup = new MembershipLookup(document, null, null, null);
+            evaluationError = e;
+        }
+        if (preserveOrder) {
+            unwritten.add(lookup);
+        }
+        if (evaluationError != null) {
+            answer(lookup, null, evaluationError);
+            return;
+        }
+        if (memberIndexes != null) {
+            MembershipIndex memberIndex = memberIndexes.get(Arrays.asList(lookup.tenantId, lookup.schemaId));
+            if (memberIndex != null) {
+                answer(lookup, memberIndex.contains(lookup.entityId), null);
+                return;
+            }
+        }
+        if (membershipCache != null) {
+            Object membership = membershipCache.get(lookup.getCacheKey());
+            if (membership != null) {
+                answer(lookup, membership, null);
+                return;
+            }
+        }
+        final MembershipLookup singleLookup = lookup;
+        if (batchSize == 1) {
+            requestPipeline.submit(Collections.singletonList(singleLookup), () -> isEntityPartOfGroup(singleLookup));
+        } else {
+            for (List<MembershipLookup> batch : microBatcher.add(lookup.getGroupKey(), lookup)) {
+                submitBatch(batch);
+            }
+        }
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+        try {
+            startBatchFlusher();
+            requestPipeline.run(() -> {
+                super.execute();
+                stopBatchFlusher();
+                for (List<MembershipLookup> batch : microBatcher.drain()) {
+                    submitBatch(batch);
+                }
+            });
+            if (membershipCache != null) {
+                LOGGER.info("Group membership cache: {}", membershipCache);
+            }
+        } finally {
+            if (batchFlusher != null) {
+                batchFlusher.shutdownNow();
+            }
+            if (memberIndexes != null) {
+                memberIndexes.close();
+            }
+        }
+    }
 }
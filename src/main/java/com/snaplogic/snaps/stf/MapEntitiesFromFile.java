@@ -1,30 +1,72 @@
 package com.snaplogic.snaps.stf;
 
+import com.google.common.collect.ImmutableSet;
 import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snaps.stf.utils.EntityMapping;
+import com.snaplogic.snaps.stf.utils.ExpiringCache;
+import com.snaplogic.snaps.stf.utils.FileUploader;
+import com.snaplogic.snaps.stf.utils.RecordReader;
+import com.snaplogic.snaps.stf.utils.RequestPipeline;
+import com.snaplogic.snaps.stf.utils.ResponseDiskCache;
+import com.snaplogic.snaps.stf.utils.ResumableUploader;
 import com.snaplogic.snaps.stf.utils.RestUtil;
 import com.google.inject.Inject;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
-import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.http.entity.mime.content.InputStreamBody;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import static com.snaplogic.snaps.stf.Constants.BYTES_PER_MB;
+import static com.snaplogic.snaps.stf.Constants.CACHE_KEY_SEPARATOR;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_DESC;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_LABEL;
+import static com.snaplogic.snaps.stf.Constants.CACHE_RESPONSES_PROP;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_DESC;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_LABEL;
+import static com.snaplogic.snaps.stf.Constants.DEADLINE_PROP;
+import static com.snaplogic.snaps.stf.Constants.DEFAULT_MAX_IN_FLIGHT;
+import static com.snaplogic.snaps.stf.Constants.ERR_INVALID_PROPERTY_MSG;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_MISSING_REASON;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_MISSING_RESOLUTION;
+import static com.snaplogic.snaps.stf.Constants.ERR_SNAP_PROPERTY_MISSING_MSG;
 import static com.snaplogic.snaps.stf.Constants.FORWARD_SLASH;
 import static com.snaplogic.snaps.stf.Constants.MAP_ENTITIES_FROM_FILE_URL;
+import static com.snaplogic.snaps.stf.Constants.MAPPING_DEFINITION_URL;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_DESC;
+import static com.snaplogic.snaps.stf.Constants.MAX_PART_SIZE_MB;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_LABEL;
+import static com.snaplogic.snaps.stf.Constants.MAX_IN_FLIGHT_PROP;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_DESC;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_LABEL;
+import static com.snaplogic.snaps.stf.Constants.PART_SIZE_PROP;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_DESC;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_LABEL;
+import static com.snaplogic.snaps.stf.Constants.PRESERVE_ORDER_PROP;
 import static com.snaplogic.snaps.stf.Constants.RESPONSE_TYPE_MAP;
 import static com.snaplogic.snaps.stf.utils.RestUtil.RestResponseObject;
 
@@ -38,20 +80,71 @@ public class MapEntitiesFromFile extends SimpleSnap {
     private static final Logger LOGGER = LoggerFactory.getLogger(MapEntitiesFromFile.class);
     private static final String INPUT_FILE_FIELD = "inputFile";
     private static final String INPUT_FILE_FIELD_LABEL = "Input File";
-    private static final String INPUT_FILE_FIELD_DESCRIPTION = "Managed Service Input File";
+    private static final String INPUT_FILE_FIELD_DESCRIPTION = "Managed Service Input File, evaluated for " +
+            "every input document";
     private static final String BINARY_FILE_PATH = "binary.file_path";
     private static final String MAPPING_ID_FIELD = "mappingId";
     private static final String MAPPING_ID_FIELD_LABEL = "Mapping Id";
     private static final String MAPPING_ID_FIELD_DESCRIPTION = "Managed Service Mapping Id";
-    private String inputFile;
-    private String fileName;
+    private ExpressionProperty inputFileExpression;
     private String mappingId;
-    private URLConnection urlConnection;
+    private boolean cacheResponses;
+    private int chunkSizeMb;
+    private int uploadParallelism;
+    private String mappingExecution;
+    private int mappingCacheTtlSec;
+    private FileUploader fileUploader;
+    private ResumableUploader resumableUploader;
+    private int maxInFlight;
+    private RequestPipeline<Document, List<Object>> requestPipeline;
     private static final String GET_URL_CONNECTION_ERROR = "Exception while opening URL connection";
     private static final String COMMON_RESOLUTION = "Ensure that the account credentials are correct and try again";
     private static final String FORMAT_SLDB = "sldb:///%s";
     private static final String INPUT_FILE = "inputFile";
     private static final String CREATE_ENTITY_EXCEPTION = "Exception while creating entity";
+    private static final String MAPPING_CACHE_PREFIX = "mapping";
+    private static final String CHUNK_SIZE_FIELD = "chunkSizeMb";
+    private static final String CHUNK_SIZE_FIELD_LABEL = "Chunk size (MB)";
+    private static final String CHUNK_SIZE_FIELD_DESCRIPTION = "Split CSV and JSON files into chunks of about " +
+            "this size on record boundaries and map the chunks concurrently, writing one output document per " +
+            "chunk. 0 uploads the whole file in one request";
+    private static final String UPLOAD_PARALLELISM_FIELD = "uploadParallelism";
+    private static final String UPLOAD_PARALLELISM_FIELD_LABEL = "Upload parallelism";
+    private static final String UPLOAD_PARALLELISM_FIELD_DESCRIPTION = "Maximum number of chunks posted to " +
+            "the mapping service at a time";
+    private static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+    private static final int MAX_UPLOAD_PARALLELISM = 64;
+    private static final int MAX_CHUNK_SIZE_MB = 64;
+    // Every chunk in flight is held in memory, so their total is capped at what a node can spare.
+    private static final int MAX_CHUNKS_IN_FLIGHT_MB = 256;
+    private static final String ERR_CHUNKS_IN_FLIGHT_REASON = "%s times %s must not exceed %d MB, the chunks " +
+            "being uploaded are held in memory";
+    private static final String ERR_CHUNKS_IN_FLIGHT_RESOLUTION = "Lower %s or %s";
+    private static final String ERR_MAX_IN_FLIGHT_REASON = "%s above 1 is only supported when each file is " +
+            "mapped in one remote request";
+    private static final String ERR_MAX_IN_FLIGHT_RESOLUTION = "Set %s to 1, or use Remote %s with a %s of 0";
+    private static final String MAPPING_EXECUTION_FIELD = "mappingExecution";
+    private static final String MAPPING_EXECUTION_FIELD_LABEL = "Mapping execution";
+    private static final String MAPPING_EXECUTION_FIELD_DESCRIPTION = "Remote uploads the file to the mapping " +
+            "service, Local fetches the mapping definition and maps the CSV or JSON records on the node, " +
+            "writing one output document per entity";
+    private static final String MAPPING_EXECUTION_REMOTE = "Remote";
+    private static final String MAPPING_EXECUTION_LOCAL = "Local";
+    private static final String MAPPING_CACHE_TTL_FIELD = "mappingCacheTtlSec";
+    private static final String MAPPING_CACHE_TTL_FIELD_LABEL = "Mapping cache TTL (sec)";
+    private static final String MAPPING_CACHE_TTL_FIELD_DESCRIPTION = "Seconds a fetched mapping definition " +
+            "is reused for local mapping";
+    private static final int DEFAULT_MAPPING_CACHE_TTL_SEC = 300;
+    private static final String MAPPING_CACHE_NAME = "mapping-definitions";
+    private static final int MAPPING_CACHE_MAX_ENTRIES = 100;
+    private static final int LOCAL_BATCH_SIZE = 10000;
+    private static final String PIPELINE_NAME = "map-entities";
+    private static final String FETCH_MAPPING_MESSAGE_ERROR = "Unable to fetch mapping definition";
+    private static final String INVALID_MAPPING_MESSAGE_ERROR = "Invalid mapping definition";
+    private static final String INVALID_MAPPING_RESOLUTION = "Ensure that the mapping id refers to a valid " +
+            "mapping";
+    private static final String MAP_RECORD_MESSAGE_ERROR = "Unable to map record";
+    private static final String MAP_RECORD_RESOLUTION = "Ensure that the record matches the mapping definition";
     @Inject
     private RestUtil restUtil;
     private static final String POSTING_DATA_MESSAGE_ERROR = "Unable to post data";
@@ -61,6 +154,7 @@ public class MapEntitiesFromFile extends SimpleSnap {
     public void defineProperties(final PropertyBuilder propertyBuilder) {
         propertyBuilder.describe(INPUT_FILE_FIELD, INPUT_FILE_FIELD_LABEL, INPUT_FILE_FIELD_DESCRIPTION)
                 .required()
+                .expression()
                 .schemaAware(SnapProperty.DecoratorType.ACCEPTS_SCHEMA)
                 .fileBrowsing()
                 .dataLocationIdentifier(BINARY_FILE_PATH)
@@ -68,76 +162,427 @@ public class MapEntitiesFromFile extends SimpleSnap {
         propertyBuilder.describe(MAPPING_ID_FIELD, MAPPING_ID_FIELD_LABEL, MAPPING_ID_FIELD_DESCRIPTION)
                 .required()
                 .add();
+        propertyBuilder.describe(CACHE_RESPONSES_PROP, CACHE_RESPONSES_LABEL, CACHE_RESPONSES_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+        propertyBuilder.describe(CHUNK_SIZE_FIELD, CHUNK_SIZE_FIELD_LABEL, CHUNK_SIZE_FIELD_DESCRIPTION)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
+        propertyBuilder.describe(UPLOAD_PARALLELISM_FIELD, UPLOAD_PARALLELISM_FIELD_LABEL,
+                UPLOAD_PARALLELISM_FIELD_DESCRIPTION)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_UPLOAD_PARALLELISM)
+                .add();
+        propertyBuilder.describe(MAPPING_EXECUTION_FIELD, MAPPING_EXECUTION_FIELD_LABEL,
+                MAPPING_EXECUTION_FIELD_DESCRIPTION)
+                .withAllowedValues(ImmutableSet.of(MAPPING_EXECUTION_REMOTE, MAPPING_EXECUTION_LOCAL))
+                .defaultValue(MAPPING_EXECUTION_REMOTE)
+                .add();
+        propertyBuilder.describe(MAPPING_CACHE_TTL_FIELD, MAPPING_CACHE_TTL_FIELD_LABEL,
+                MAPPING_CACHE_TTL_FIELD_DESCRIPTION)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAPPING_CACHE_TTL_SEC)
+                .add();
+        propertyBuilder.describe(PART_SIZE_PROP, PART_SIZE_LABEL, PART_SIZE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
+        propertyBuilder.describe(MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL, MAX_IN_FLIGHT_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(DEFAULT_MAX_IN_FLIGHT)
+                .add();
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_LABEL, PRESERVE_ORDER_DESC)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+        propertyBuilder.describe(DEADLINE_PROP, DEADLINE_LABEL, DEADLINE_DESC)
+                .type(SnapType.INTEGER)
+                .defaultValue(0)
+                .add();
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
-        inputFile =  propertyValues.get(INPUT_FILE_FIELD);
-        fileName = StringUtils.substringAfterLast(inputFile, FORWARD_SLASH);
+        inputFileExpression = propertyValues.getAsExpression(INPUT_FILE_FIELD);
         mappingId = propertyValues.get(MAPPING_ID_FIELD);
+        cacheResponses = Boolean.TRUE.equals(propertyValues.get(CACHE_RESPONSES_PROP));
+        chunkSizeMb = PropertyValidation.integerInRange(propertyValues, CHUNK_SIZE_FIELD, CHUNK_SIZE_FIELD_LABEL, 0,
+                0, MAX_CHUNK_SIZE_MB);
+        uploadParallelism = PropertyValidation.integerInRange(propertyValues, UPLOAD_PARALLELISM_FIELD,
+                UPLOAD_PARALLELISM_FIELD_LABEL, DEFAULT_UPLOAD_PARALLELISM, 1, MAX_UPLOAD_PARALLELISM);
+        if (chunkSizeMb * uploadParallelism > MAX_CHUNKS_IN_FLIGHT_MB) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_CHUNKS_IN_FLIGHT_REASON, CHUNK_SIZE_FIELD_LABEL,
+                            UPLOAD_PARALLELISM_FIELD_LABEL, MAX_CHUNKS_IN_FLIGHT_MB))
+                    .withResolution(String.format(ERR_CHUNKS_IN_FLIGHT_RESOLUTION, CHUNK_SIZE_FIELD_LABEL,
+                            UPLOAD_PARALLELISM_FIELD_LABEL));
+        }
+        mappingExecution = propertyValues.get(MAPPING_EXECUTION_FIELD);
+        if (StringUtils.isBlank(mappingExecution)) {
+            mappingExecution = MAPPING_EXECUTION_REMOTE;
+        }
+        Number mappingCacheTtlValue = propertyValues.get(MAPPING_CACHE_TTL_FIELD);
+        mappingCacheTtlSec = mappingCacheTtlValue == null ? DEFAULT_MAPPING_CACHE_TTL_SEC :
+                Math.max(0, mappingCacheTtlValue.intValue());
+        fileUploader = new FileUploader(restUtil);
+        int partSizeMb = PropertyValidation.integerInRange(propertyValues, PART_SIZE_PROP, PART_SIZE_LABEL, 0, 0,
+                MAX_PART_SIZE_MB);
+        resumableUploader = partSizeMb == 0 ? null :
+                new ResumableUploader(restUtil, (int) (partSizeMb * BYTES_PER_MB));
+        maxInFlight = PropertyValidation.positiveInteger(propertyValues, MAX_IN_FLIGHT_PROP, MAX_IN_FLIGHT_LABEL,
+                DEFAULT_MAX_IN_FLIGHT);
+        // Local and chunked mapping write many documents per file, which files in flight would have to hold.
+        if (maxInFlight > 1 && (MAPPING_EXECUTION_LOCAL.equals(mappingExecution) || chunkSizeMb > 0)) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_MAX_IN_FLIGHT_REASON, MAX_IN_FLIGHT_LABEL))
+                    .withResolution(String.format(ERR_MAX_IN_FLIGHT_RESOLUTION, MAX_IN_FLIGHT_LABEL,
+                            MAPPING_EXECUTION_FIELD_LABEL, CHUNK_SIZE_FIELD_LABEL));
+        }
+        Boolean preserveOrder = propertyValues.get(PRESERVE_ORDER_PROP);
+        // The documents produced for a file are written with its input document as lineage.
+        requestPipeline = new RequestPipeline<>(PIPELINE_NAME, maxInFlight, !Boolean.FALSE.equals(preserveOrder),
+                RequestPipeline.forDocuments((document, results) -> {
+                    for (Object result : results) {
+                        writeResult(document, result);
+                    }
+                }, errorViews));
+        Number deadlineValue = propertyValues.get(DEADLINE_PROP);
+        restUtil.setDeadlineMillis(TimeUnit.SECONDS.toMillis(deadlineValue == null ? 0 :
+                Math.max(0, deadlineValue.intValue())));
+    }
+
+    /**
+     * Writes a mapped document, or a failed record to the error view, against the originating document.
+     */
+    private void writeResult(Document document, Object result) {
+        if (result instanceof SnapDataException) {
+            errorViews.write((SnapDataException) result, document);
+        } else {
+            outputViews.write(documentUtility.newDocument(result), document);
+        }
+    }
+
+    /**
+     * Path of an input file referenced by a document, relative to the project's sldb file system.
+     */
+    private static class SourceFile {
+        private final String path;
+        private final String name;
+
+        SourceFile(String path) {
+            this.path = path;
+            this.name = StringUtils.substringAfterLast(path, FORWARD_SLASH);
+        }
+    }
+
+    private SourceFile evaluateInputFile(Document document) {
+        Object value = inputFileExpression.eval(document);
+        if (value == null || StringUtils.isBlank(value.toString())) {
+            throw new SnapDataException(ERR_SNAP_PROPERTY_MISSING_MSG)
+                    .withReason(String.format(ERR_PROPERTY_MISSING_REASON, INPUT_FILE_FIELD_LABEL))
+                    .withResolution(String.format(ERR_PROPERTY_MISSING_RESOLUTION, INPUT_FILE_FIELD_LABEL));
+        }
+        return new SourceFile(value.toString());
     }
 
     private URLConnection getUrlConnection(URL url) throws IOException {
-        urlConnection = url.openConnection();
+        URLConnection urlConnection = url.openConnection();
         if (urlConnection == null) {
-            errorViews.write((SnapDataException)
-                    new SnapDataException(GET_URL_CONNECTION_ERROR)
-                            .withResolution(COMMON_RESOLUTION));
+            throw (SnapDataException) new SnapDataException(GET_URL_CONNECTION_ERROR)
+                    .withResolution(COMMON_RESOLUTION);
         }
         return urlConnection;
     }
 
-    private HttpEntity createEntity() {
+    private InputStream openInputFile(SourceFile file) {
         try {
-            inputFile = String.format(FORMAT_SLDB, inputFile);
             URI build;
-            build = new URIBuilder(new URI(inputFile)).build();
+            build = new URIBuilder(new URI(String.format(FORMAT_SLDB, file.path))).build();
             String st = build.toString();
-            MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
             URL url = new URL(st);
-            urlConnection = getUrlConnection(url);
+            URLConnection urlConnection = getUrlConnection(url);
             urlConnection.connect();
-            InputStream inputStream = urlConnection.getInputStream();
-            InputStreamBody inputStreamBody;
-            inputStreamBody = new InputStreamBody(inputStream, fileName);
-            return multipartEntityBuilder.addPart(INPUT_FILE, inputStreamBody).build();
+            return urlConnection.getInputStream();
         } catch (IOException | SecurityException | URISyntaxException exception) {
-            errorViews.write((SnapDataException)
-                    new SnapDataException(exception, CREATE_ENTITY_EXCEPTION)
-                            .withResolution(COMMON_RESOLUTION));
+            throw (SnapDataException) new SnapDataException(exception, CREATE_ENTITY_EXCEPTION)
+                    .withResolution(COMMON_RESOLUTION);
         }
-        return null;
     }
 
+    private ContentBody createBody(SourceFile file) {
+        return new InputStreamBody(openInputFile(file), file.name);
+    }
+
+    /**
+     * Maps the file referenced by the document. With a single file in flight its documents are written as
+     * they are produced; otherwise, which configure only allows for one remote request per file, the single
+     * document of each file is written on the snap thread once the file is done.
+     */
     @Override
     protected void process(Document document, String s) {
         LOGGER.debug("Inside MapEntitiesFromFile.process() method");
-        Map map;
+        SourceFile file;
         try {
-            HttpEntity payload = createEntity();
-            String generateSchemaFromFileUrl;
-            generateSchemaFromFileUrl = String.format(MAP_ENTITIES_FROM_FILE_URL, mappingId);
-            RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpPost.METHOD_NAME, payload,
-                    generateSchemaFromFileUrl, RESPONSE_TYPE_MAP);
-            StatusLine statusLine = restResponseObject.getStatusLine();
-            if (statusLine != null) {
-                LOGGER.error("Failed to map entities from file with Http response code {} and reason {}",
-                        statusLine.getStatusCode(),
-                        statusLine.getReasonPhrase());
-                throw new SnapDataException(POSTING_DATA_MESSAGE_ERROR)
-                        .withReason(String.format(COMMON_REASON,
-                                statusLine.getStatusCode(),
-                                statusLine.getReasonPhrase()))
-                        .withResolution(COMMON_RESOLUTION);
+            file = evaluateInputFile(document);
+        } catch (SnapDataException e) {
+            errorViews.write(e, document);
+            return;
+        }
+        if (maxInFlight == 1) {
+            try {
+                mapFile(file, result -> writeResult(document, result));
+            } catch (SnapDataException e) {
+                errorViews.write(e, document);
+            }
+        } else {
+            requestPipeline.submit(document, () -> {
+                List<Object> results = new ArrayList<>();
+                mapFile(file, results::add);
+                return results;
+            });
+        }
+        LOGGER.debug("End of MapEntitiesFromFile.process() method");
+    }
+
+    @Override
+    public void execute() throws ExecutionException {
+        requestPipeline.run(super::execute);
+    }
+
+    /**
+     * Hands every mapped document, or {@link SnapDataException} of a record that failed, to the sink.
+     */
+    private void mapFile(SourceFile file, Consumer<Object> sink) {
+        try {
+            if (MAPPING_EXECUTION_LOCAL.equals(mappingExecution)) {
+                mapEntitiesLocally(file, sink);
+            } else if (chunkSizeMb > 0) {
+                mapEntitiesInChunks(file, sink);
             } else {
-                map = restResponseObject.getBody();
-                outputViews.write(documentUtility.newDocument(map));
+                mapEntities(file, sink);
             }
         } catch (IOException e1) {
             throw new SnapDataException(e1, POSTING_DATA_MESSAGE_ERROR)
                     .withReason(e1.getMessage())
                     .withResolution(COMMON_RESOLUTION);
         }
-        LOGGER.debug("End of MapEntitiesFromFile.process() method");
     }
-}
\ No newline at end of file
+
+    private void mapEntities(SourceFile file, Consumer<Object> sink) throws IOException {
+        String cacheKey = null;
+        if (cacheResponses) {
+            cacheKey = StringUtils.join(new Object[]{MAPPING_CACHE_PREFIX,
+                    ResponseDiskCache.hash(openInputFile(file)), mappingId}, CACHE_KEY_SEPARATOR);
+            Map cachedMap = ResponseDiskCache.getInstance().get(cacheKey);
+            if (cachedMap != null) {
+                LOGGER.info("Using cached entity mapping of unchanged file {}", file.name);
+                sink.accept(cachedMap);
+                return;
+            }
+        }
+        Map map;
+        if (resumableUploader != null) {
+            map = checkResponse(resumableUploader.upload(String.format(MAP_ENTITIES_FROM_FILE_URL, mappingId),
+                    file.path, () -> openInputFile(file)));
+        } else {
+            map = postFile(() -> createBody(file));
+        }
+        if (cacheKey != null) {
+            ResponseDiskCache.getInstance().put(cacheKey, map);
+        }
+        sink.accept(map);
+    }
+
+    /**
+     * Splits the file into chunks of whole records, each a valid file of the same format, and posts up to
+     * the configured number of chunks at a time. Chunk results are written in file order; the file is read
+     * only as fast as chunks complete, so memory stays bounded by the chunk size and parallelism.
+     */
+    private void mapEntitiesInChunks(SourceFile file, Consumer<Object> sink) throws IOException {
+        long chunkBytes = chunkSizeMb * BYTES_PER_MB;
+        RequestPipeline.Handler<Integer, Map> handler = new RequestPipeline.Handler<Integer, Map>() {
+            @Override
+            public void onResult(Integer chunk, Map map) {
+                LOGGER.debug("Writing mapping results of chunk {} of {}", chunk, file.name);
+                sink.accept(map);
+            }
+
+            @Override
+            public void onError(Integer chunk, RuntimeException error) {
+                throw error;
+            }
+        };
+        try (RecordReader recordReader = RecordReader.open(openInputFile(file));
+             RequestPipeline<Integer, Map> pipeline = new RequestPipeline<>("map-entities-chunk",
+                     uploadParallelism, true, handler)) {
+            int chunk = 0;
+            List<String> records = new ArrayList<>();
+            long size = 0;
+            String record;
+            while ((record = recordReader.next()) != null) {
+                records.add(record);
+                size += utf8Length(record) + 1;
+                if (size >= chunkBytes) {
+                    submitChunk(pipeline, recordReader, file, chunk++, records);
+                    records = new ArrayList<>();
+                    size = 0;
+                }
+            }
+            if (!records.isEmpty() || chunk == 0) {
+                submitChunk(pipeline, recordReader, file, chunk++, records);
+            }
+            pipeline.drain();
+            LOGGER.info("Mapped {} in {} chunks", file.name, chunk);
+        }
+    }
+
+    /**
+     * Returns the number of bytes the record takes once written as UTF-8, without encoding it.
+     */
+    private static long utf8Length(String record) {
+        long length = 0;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < record.length() &&
+                    Character.isLowSurrogate(record.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void submitChunk(RequestPipeline<Integer, Map> pipeline, RecordReader recordReader, SourceFile file,
+                             int chunk, List<String> records) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        recordReader.write(records, content);
+        byte[] bytes = content.toByteArray();
+        pipeline.submit(chunk, () -> postFile(() -> new ByteArrayBody(bytes, file.name)));
+    }
+
+    /**
+     * Maps the records of the file on the node with the mapping definition. Records are read in batches on
+     * the snap thread and mapped across cores on a fork-join pool; entities are written in record order and
+     * records that cannot be mapped go to the error view.
+     */
+    private void mapEntitiesLocally(SourceFile file, Consumer<Object> sink) throws IOException {
+        EntityMapping entityMapping = getEntityMapping();
+        ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        long entityCount = 0;
+        try (RecordReader recordReader = RecordReader.open(openInputFile(file))) {
+            List<String> records;
+            do {
+                records = new ArrayList<>(LOCAL_BATCH_SIZE);
+                String record;
+                while (records.size() < LOCAL_BATCH_SIZE && (record = recordReader.next()) != null) {
+                    records.add(record);
+                }
+                for (Object result : mapRecords(forkJoinPool, recordReader, entityMapping, records)) {
+                    if (result instanceof Map) {
+                        sink.accept(result);
+                        entityCount++;
+                    } else {
+                        sink.accept(new SnapDataException((Exception) result, MAP_RECORD_MESSAGE_ERROR)
+                                .withReason(((Exception) result).getMessage())
+                                .withResolution(MAP_RECORD_RESOLUTION));
+                    }
+                }
+            } while (records.size() == LOCAL_BATCH_SIZE);
+        } finally {
+            forkJoinPool.shutdownNow();
+        }
+        LOGGER.info("Mapped {} entities from {} locally", entityCount, file.name);
+    }
+
+    /**
+     * Returns the mapped entity of every record in order, or the exception for records that failed.
+     */
+    private static List<Object> mapRecords(ForkJoinPool forkJoinPool, RecordReader recordReader,
+                                           EntityMapping entityMapping, List<String> records)
+            throws IOException {
+        try {
+            return forkJoinPool.submit(() -> records.parallelStream()
+                    .map(record -> mapRecord(recordReader, entityMapping, record))
+                    .collect(Collectors.toList()))
+                    .get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(MAP_RECORD_MESSAGE_ERROR);
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Object mapRecord(RecordReader recordReader, EntityMapping entityMapping, String record) {
+        try {
+            return entityMapping.apply(recordReader.parse(record));
+        } catch (IOException | RuntimeException e) {
+            // Any failure belongs to this record alone and goes to the error view with it.
+            return e;
+        }
+    }
+
+    private EntityMapping getEntityMapping() throws IOException {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(mappingCacheTtlSec);
+        ExpiringCache<String, EntityMapping> mappingCache = ExpiringCache.shared(MAPPING_CACHE_NAME, ttlMillis,
+                ttlMillis, MAPPING_CACHE_MAX_ENTRIES);
+        EntityMapping entityMapping = mappingCache.get(mappingId);
+        if (entityMapping != null) {
+            return entityMapping;
+        }
+        String mappingDefinitionUrl = String.format(MAPPING_DEFINITION_URL, mappingId);
+        RestResponseObject restResponseObject = restUtil.invokeSharedHttpCall(HttpGet.METHOD_NAME,
+                mappingDefinitionUrl, RESPONSE_TYPE_MAP);
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine != null) {
+            LOGGER.error("Failed to fetch mapping definition with Http response code {} and reason {}",
+                    statusLine.getStatusCode(),
+                    statusLine.getReasonPhrase());
+            throw new SnapDataException(FETCH_MAPPING_MESSAGE_ERROR)
+                    .withReason(String.format(COMMON_REASON,
+                            statusLine.getStatusCode(),
+                            statusLine.getReasonPhrase()))
+                    .withResolution(COMMON_RESOLUTION);
+        }
+        try {
+            entityMapping = EntityMapping.parse(restResponseObject.getBody());
+        } catch (IllegalArgumentException e) {
+            throw new SnapDataException(e, INVALID_MAPPING_MESSAGE_ERROR)
+                    .withReason(e.getMessage())
+                    .withResolution(INVALID_MAPPING_RESOLUTION);
+        }
+        mappingCache.put(mappingId, entityMapping, false);
+        return entityMapping;
+    }
+
+    private Map postFile(FileUploader.UploadSource uploadSource) throws IOException {
+        String generateSchemaFromFileUrl;
+        generateSchemaFromFileUrl = String.format(MAP_ENTITIES_FROM_FILE_URL, mappingId);
+        RestResponseObject restResponseObject = fileUploader.upload(generateSchemaFromFileUrl, INPUT_FILE,
+                uploadSource, false);
+        return checkResponse(restResponseObject);
+    }
+
+    private Map checkResponse(RestResponseObject restResponseObject) {
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine != null) {
+            LOGGER.error("Failed to map entities from file with Http response code {} and reason {}",
+                    statusLine.getStatusCode(),
+                    statusLine.getReasonPhrase());
+            throw new SnapDataException(POSTING_DATA_MESSAGE_ERROR)
+                    .withReason(String.format(COMMON_REASON,
+                            statusLine.getStatusCode(),
+                            statusLine.getReasonPhrase()))
+                    .withResolution(COMMON_RESOLUTION);
+        }
+        return restResponseObject.getBody();
+    }
+}
@@ -0,0 +1,78 @@
+package com.snaplogic.snaps.stf;
+
+import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.snap.api.PropertyValues;
+
+import static com.snaplogic.snaps.stf.Constants.ERR_INVALID_PROPERTY_MSG;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_NEGATIVE_REASON;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_NEGATIVE_RESOLUTION;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_NOT_POSITIVE_REASON;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_NOT_POSITIVE_RESOLUTION;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_OUT_OF_RANGE_REASON;
+import static com.snaplogic.snaps.stf.Constants.ERR_PROPERTY_OUT_OF_RANGE_RESOLUTION;
+
+/**
+ * Checks of numeric snap properties shared by the STF snaps.
+ */
+final class PropertyValidation {
+
+    private PropertyValidation() {
+    }
+
+    /**
+     * Returns the integer property, or the default when it is not set.
+     *
+     * @throws ConfigurationException when the value is below 1
+     */
+    static int positiveInteger(PropertyValues propertyValues, String property, String label, int defaultValue)
+            throws ConfigurationException {
+        Number value = propertyValues.get(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.intValue() < 1) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_PROPERTY_NOT_POSITIVE_REASON, label))
+                    .withResolution(String.format(ERR_PROPERTY_NOT_POSITIVE_RESOLUTION, label));
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Returns the integer property, or the default when it is not set.
+     *
+     * @throws ConfigurationException when the value is negative
+     */
+    static int nonNegativeInteger(PropertyValues propertyValues, String property, String label, int defaultValue)
+            throws ConfigurationException {
+        Number value = propertyValues.get(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.intValue() < 0) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_PROPERTY_NEGATIVE_REASON, label))
+                    .withResolution(String.format(ERR_PROPERTY_NEGATIVE_RESOLUTION, label));
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Returns the integer property, or the default when it is not set.
+     *
+     * @throws ConfigurationException when the value is outside min to max, both included
+     */
+    static int integerInRange(PropertyValues propertyValues, String property, String label, int defaultValue,
+                              int min, int max) throws ConfigurationException {
+        Number value = propertyValues.get(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.longValue() < min || value.longValue() > max) {
+            throw new ConfigurationException(ERR_INVALID_PROPERTY_MSG)
+                    .withReason(String.format(ERR_PROPERTY_OUT_OF_RANGE_REASON, label, min, max))
+                    .withResolution(String.format(ERR_PROPERTY_OUT_OF_RANGE_RESOLUTION, label, min, max));
+        }
+        return value.intValue();
+    }
+}
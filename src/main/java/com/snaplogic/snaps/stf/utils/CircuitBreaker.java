@@ -0,0 +1,90 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-wide circuit breaker per endpoint (host and port).
+ * <p>
+ * After {@value #FAILURE_THRESHOLD_PROPERTY} consecutive failures the circuit opens and calls to the endpoint
+ * fail fast without touching the network. Once {@value #OPEN_SECONDS_PROPERTY} seconds have passed a single
+ * trial call is let through: its success closes the circuit again, its failure re-opens it for another
+ * period. Failures are I/O errors and 5xx responses; any other response counts as the endpoint being healthy.
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+    static final String FAILURE_THRESHOLD_PROPERTY = "stf.breaker.failureThreshold";
+    static final String OPEN_SECONDS_PROPERTY = "stf.breaker.openSec";
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_OPEN_SECONDS = 30;
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    private CircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+        this.failureThreshold = Integer.getInteger(FAILURE_THRESHOLD_PROPERTY, DEFAULT_FAILURE_THRESHOLD);
+        this.openNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger(OPEN_SECONDS_PROPERTY,
+                DEFAULT_OPEN_SECONDS));
+    }
+
+    public static CircuitBreaker forEndpoint(String endpoint) {
+        return BREAKERS.computeIfAbsent(endpoint, CircuitBreaker::new);
+    }
+
+    /**
+     * Returns whether a call may be sent now. Once the circuit has been open for its period a single trial call
+     * gets through; another one is let through a period later should the trial never report back.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - openedAt >= openNanos) {
+            LOGGER.info("Trying {} again after its circuit was open", endpoint);
+            state = State.HALF_OPEN;
+            openedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.info("Circuit for {} closed", endpoint);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            LOGGER.warn("Circuit for {} opened after {} consecutive failures", endpoint, consecutiveFailures);
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
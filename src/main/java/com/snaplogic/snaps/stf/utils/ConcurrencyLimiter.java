@@ -0,0 +1,273 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node-wide adaptive limit on the requests in flight to an endpoint (host and port), with an optional rate cap.
+ * Off unless {@value #ENABLED_PROPERTY} is true, as it holds a slot for the whole of a call, including long
+ * uploads and streamed results.
+ * <p>
+ * The limit follows AIMD: every request that completes normally raises it by one over the current limit, so it
+ * grows by about one per round of requests, and every request that times out or is refused with an overload
+ * status cuts it by {@value #DECREASE_FACTOR}. With {@value #RATE_PROPERTY} set, requests also need a token
+ * from a bucket refilled at that many per second. Callers over the limit queue; they are shed once
+ * {@value #MAX_QUEUE_PROPERTY} callers are already waiting or their wait times out. Callers with a deadline
+ * wait until it, others for {@value #QUEUE_TIMEOUT_PROPERTY}, {@value #DEFAULT_QUEUE_TIMEOUT_MS} ms by default,
+ * or until a slot frees up when that is 0.
+ * Invalid property values are ignored with a warning. The limit, requests in flight, queue depth and shed count
+ * are published over JMX under {@value #OBJECT_NAME_PREFIX}.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    static final String ENABLED_PROPERTY = "stf.limit.enabled";
+    static final String INITIAL_LIMIT_PROPERTY = "stf.limit.initial";
+    static final String MIN_LIMIT_PROPERTY = "stf.limit.min";
+    static final String MAX_LIMIT_PROPERTY = "stf.limit.max";
+    static final String MAX_QUEUE_PROPERTY = "stf.limit.maxQueue";
+    static final String QUEUE_TIMEOUT_PROPERTY = "stf.limit.queueTimeoutMs";
+    static final String RATE_PROPERTY = "stf.limit.ratePerSec";
+    static final String OBJECT_NAME_PREFIX = "com.snaplogic.snaps.stf:type=ConcurrencyLimiter,endpoint=";
+    private static final int DEFAULT_INITIAL_LIMIT = 10;
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    private static final int DEFAULT_MAX_LIMIT = 50;
+    private static final int DEFAULT_MAX_QUEUE = 100;
+    private static final int DEFAULT_QUEUE_TIMEOUT_MS = 30000;
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final String ERR_SHED_MSG = "Too many requests waiting for %s, request shed";
+    private static final String ERR_INTERRUPTED_MSG = "Interrupted while waiting to call %s";
+    private static final ConcurrentMap<String, ConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final double minLimit;
+    private final double maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final double ratePerSecond;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long shedCount;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Thrown when a request is shed before being sent, which says nothing about the endpoint's health.
+     */
+    public static class RequestShedException extends IOException {
+        RequestShedException(String message) {
+            super(message);
+        }
+    }
+
+    private ConcurrencyLimiter(String endpoint) {
+        this.endpoint = endpoint;
+        int min = intProperty(MIN_LIMIT_PROPERTY, DEFAULT_MIN_LIMIT, 1, Integer.MAX_VALUE);
+        int max = intProperty(MAX_LIMIT_PROPERTY, Math.max(min, DEFAULT_MAX_LIMIT), min, Integer.MAX_VALUE);
+        this.minLimit = min;
+        this.maxLimit = max;
+        this.maxQueue = intProperty(MAX_QUEUE_PROPERTY, DEFAULT_MAX_QUEUE, 0, Integer.MAX_VALUE);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(intProperty(QUEUE_TIMEOUT_PROPERTY,
+                DEFAULT_QUEUE_TIMEOUT_MS, 0, Integer.MAX_VALUE));
+        this.ratePerSecond = intProperty(RATE_PROPERTY, 0, 0, Integer.MAX_VALUE);
+        this.limit = intProperty(INITIAL_LIMIT_PROPERTY, Math.max(min, Math.min(max, DEFAULT_INITIAL_LIMIT)), min,
+                max);
+        this.tokens = ratePerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Returns the value of the system property, or the default when it is unset, not a number or outside
+     * min and max.
+     */
+    private static int intProperty(String property, int defaultValue, int min, int max) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue >= min && intValue <= max) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below like a value out of range.
+        }
+        LOGGER.warn("Ignoring {} of {}, it must be a number between {} and {}, using {}", property, value, min,
+                max, defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Returns whether calls are limited at all, see {@value #ENABLED_PROPERTY}.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    public static ConcurrencyLimiter forEndpoint(String endpoint) {
+        return LIMITERS.computeIfAbsent(endpoint, key -> {
+            ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(key);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(concurrencyLimiter,
+                        new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(key)));
+            } catch (JMException | RuntimeException e) {
+                LOGGER.debug("Unable to publish the concurrency limit of {}", key, e);
+            }
+            return concurrencyLimiter;
+        });
+    }
+
+    /**
+     * Waits until a request may be sent, for at most the timeout. A timeout of 0, for a call without a deadline,
+     * waits for the configured queue timeout. Every successful acquire must be followed by a {@link #release} or
+     * {@link #cancel}.
+     *
+     * @throws RequestShedException when the queue is full or the wait timed out
+     */
+    public void acquire(long timeoutNanos) throws IOException {
+        long waitNanos = timeoutNanos > 0 ? timeoutNanos : queueTimeoutNanos;
+        lock.lock();
+        try {
+            if (queued == 0 && inFlight < (int) limit && takeToken()) {
+                inFlight++;
+                return;
+            }
+            if (queued >= maxQueue) {
+                throw shed();
+            }
+            queued++;
+            try {
+                long waitUntil = System.nanoTime() + waitNanos;
+                while (!(inFlight < (int) limit && takeToken())) {
+                    long remaining = waitNanos == 0 ? Long.MAX_VALUE : waitUntil - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw shed();
+                    }
+                    if (inFlight < (int) limit) {
+                        // Only the rate cap is holding the request back; wake up when the next token is due.
+                        remaining = Math.min(remaining, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+                    }
+                    available.awaitNanos(remaining);
+                }
+                inFlight++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format(ERR_INTERRUPTED_MSG, endpoint));
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a request, raising the limit after a normal completion and cutting it after an overload signal.
+     */
+    public void release(boolean overloaded) {
+        lock.lock();
+        try {
+            inFlight--;
+            double previousLimit = limit;
+            if (overloaded) {
+                limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+            } else if (inFlight + 1 >= limit / 2) {
+                // Only grow while the limit is actually being used.
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            if ((int) limit != (int) previousLimit) {
+                LOGGER.debug("Concurrency limit of {} is now {}", endpoint, (int) limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a request that was abandoned, such as the losing half of a hedge, leaving the limit as it is.
+     */
+    public void cancel() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean takeToken() {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(ratePerSecond, tokens + (now - refilledAt) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private RequestShedException shed() {
+        shedCount++;
+        LOGGER.warn("Shedding request to {} with {} in flight and {} queued", endpoint, inFlight, queued);
+        return new RequestShedException(String.format(ERR_SHED_MSG, endpoint));
+    }
+
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getShedCount() {
+        lock.lock();
+        try {
+            return shedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.snaplogic.snaps.stf.utils;
+
+/**
+ * JMX view of an endpoint's {@link ConcurrencyLimiter}.
+ */
+public interface ConcurrencyLimiterMBean {
+    int getLimit();
+
+    int getInFlight();
+
+    int getQueueDepth();
+
+    long getShedCount();
+}
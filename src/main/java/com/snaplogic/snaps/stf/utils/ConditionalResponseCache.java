@@ -0,0 +1,154 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Node-wide cache of parsed GET responses together with their {@code ETag} and {@code Last-Modified}
+ * validators, so that repeated requests can be sent conditionally and a {@code 304 Not Modified} answered
+ * from memory without downloading or parsing the body again.
+ * <p>
+ * Entries are weighed by an estimate of the heap taken by the parsed body, which is several times its size on
+ * the wire, and the least recently used ones are evicted once the total passes {@value #MAX_SIZE_PROPERTY}
+ * megabytes. Responses without validators are not cached.
+ */
+public final class ConditionalResponseCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConditionalResponseCache.class);
+    static final String MAX_SIZE_PROPERTY = "stf.conditionalCache.maxMb";
+    private static final int DEFAULT_MAX_SIZE_MB = 32;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    // Rough 64-bit JVM sizes of the objects a parsed JSON body is made of.
+    private static final int MAP_BYTES = 48;
+    private static final int MAP_ENTRY_BYTES = 40;
+    private static final int LIST_BYTES = 24;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int STRING_BYTES = 40;
+    private static final int NUMBER_BYTES = 24;
+    private static final ConditionalResponseCache INSTANCE = new ConditionalResponseCache();
+
+    private final Cache<String, Entry> cache;
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    /**
+     * Cached response body with the validators it was served with.
+     */
+    public static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final Map body;
+        private final int weight;
+
+        Entry(String etag, String lastModified, Map body, int weight) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+            this.weight = weight;
+        }
+
+        public Map getBody() {
+            return body;
+        }
+
+        /**
+         * Makes the request conditional on the cached response being out of date.
+         */
+        public void addValidators(HttpUriRequest httpRequest) {
+            if (etag != null) {
+                httpRequest.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                httpRequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+    }
+
+    private ConditionalResponseCache() {
+        int maxSizeMb = Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB);
+        if (maxSizeMb < 0) {
+            LOGGER.warn("Ignoring negative {} of {}, using {}", MAX_SIZE_PROPERTY, maxSizeMb, DEFAULT_MAX_SIZE_MB);
+            maxSizeMb = DEFAULT_MAX_SIZE_MB;
+        }
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeMb * BYTES_PER_MB)
+                .<String, Entry>weigher((key, entry) -> entry.weight)
+                .build();
+    }
+
+    public static ConditionalResponseCache getInstance() {
+        return INSTANCE;
+    }
+
+    public Entry get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Caches the parsed body of a successful response under its validators, or drops the key when the
+     * response carries none. The body is only supplied once the response is known to be cached, and must not
+     * be modified afterwards.
+     */
+    public void put(String key, HttpResponse httpResponse, Supplier<Map> bodySupplier) {
+        String etag = headerValue(httpResponse, HttpHeaders.ETAG);
+        String lastModified = headerValue(httpResponse, HttpHeaders.LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            cache.invalidate(key);
+            return;
+        }
+        Map body = bodySupplier.get();
+        cache.put(key, new Entry(etag, lastModified, body, (int) Math.min(estimateBytes(body) +
+                STRING_BYTES + 2L * key.length(), Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Estimates the heap taken by a parsed JSON value. Booleans and null are shared and take nothing.
+     */
+    static long estimateBytes(Object value) {
+        if (value instanceof Map) {
+            long bytes = MAP_BYTES;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += MAP_ENTRY_BYTES + estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+            }
+            return bytes;
+        } else if (value instanceof List) {
+            long bytes = LIST_BYTES;
+            for (Object element : (List<?>) value) {
+                bytes += REFERENCE_BYTES + estimateBytes(element);
+            }
+            return bytes;
+        } else if (value instanceof String) {
+            return STRING_BYTES + 2L * ((String) value).length();
+        } else if (value instanceof Number) {
+            return NUMBER_BYTES;
+        }
+        return 0;
+    }
+
+    void recordNotModified() {
+        notModifiedCount.incrementAndGet();
+    }
+
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static String headerValue(HttpResponse httpResponse, String name) {
+        Header header = httpResponse.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+}
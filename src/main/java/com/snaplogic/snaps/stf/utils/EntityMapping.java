@@ -0,0 +1,176 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapping definition fetched from the mapping service, applied to file records on the node.
+ * <p>
+ * A definition lists field mappings under {@code mappings}. Each one reads the {@code source} field of the
+ * record, a CSV column name, JSON pointer or dotted path, and writes it to the dotted {@code target} path of
+ * the entity, optionally converted to the {@code type} string, integer, number or boolean and falling back to
+ * {@code default} when the source is missing or empty. Instances are immutable and safe to share.
+ */
+public class EntityMapping {
+    private static final String MAPPINGS_KEY = "mappings";
+    private static final String SOURCE_KEY = "source";
+    private static final String TARGET_KEY = "target";
+    private static final String TYPE_KEY = "type";
+    private static final String DEFAULT_KEY = "default";
+    private static final String POINTER_PREFIX = "/";
+    private static final String TYPE_STRING = "string";
+    private static final String TYPE_INTEGER = "integer";
+    private static final String TYPE_NUMBER = "number";
+    private static final String TYPE_BOOLEAN = "boolean";
+    private static final String ERR_INVALID_DEFINITION = "Mapping definition has no valid %s";
+    private static final String ERR_CONVERSION = "Value '%s' of %s is not a valid %s";
+
+    private final List<FieldMapping> fieldMappings;
+
+    private static class FieldMapping {
+        private final String source;
+        private final String[] sourcePath;
+        private final String[] targetPath;
+        private final String type;
+        private final Object defaultValue;
+
+        FieldMapping(String source, String target, String type, Object defaultValue) {
+            this.source = source;
+            this.sourcePath = source.startsWith(POINTER_PREFIX) ? StringUtils.split(source, POINTER_PREFIX) :
+                    StringUtils.split(source, '.');
+            this.targetPath = StringUtils.split(target, '.');
+            this.type = type;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    private EntityMapping(List<FieldMapping> fieldMappings) {
+        this.fieldMappings = fieldMappings;
+    }
+
+    /**
+     * Parses the definition returned by the mapping service.
+     *
+     * @throws IllegalArgumentException when the definition has no usable field mappings
+     */
+    public static EntityMapping parse(Map definition) {
+        Object mappings = definition == null ? null : definition.get(MAPPINGS_KEY);
+        if (!(mappings instanceof List) || ((List<?>) mappings).isEmpty()) {
+            throw new IllegalArgumentException(String.format(ERR_INVALID_DEFINITION, MAPPINGS_KEY));
+        }
+        List<FieldMapping> fieldMappings = new ArrayList<>();
+        for (Object mapping : (List<?>) mappings) {
+            if (!(mapping instanceof Map)) {
+                throw new IllegalArgumentException(String.format(ERR_INVALID_DEFINITION, MAPPINGS_KEY));
+            }
+            Map<?, ?> fields = (Map<?, ?>) mapping;
+            Object source = fields.get(SOURCE_KEY);
+            Object target = fields.get(TARGET_KEY);
+            if (source == null || StringUtils.isBlank(source.toString())) {
+                throw new IllegalArgumentException(String.format(ERR_INVALID_DEFINITION, SOURCE_KEY));
+            }
+            if (target == null || StringUtils.isBlank(target.toString())) {
+                throw new IllegalArgumentException(String.format(ERR_INVALID_DEFINITION, TARGET_KEY));
+            }
+            Object type = fields.get(TYPE_KEY);
+            fieldMappings.add(new FieldMapping(source.toString(), target.toString(),
+                    type == null ? null : type.toString(), fields.get(DEFAULT_KEY)));
+        }
+        return new EntityMapping(Collections.unmodifiableList(fieldMappings));
+    }
+
+    /**
+     * Maps a record parsed by {@link RecordReader#parse} to an entity.
+     *
+     * @throws IllegalArgumentException when a value cannot be converted to its target type
+     */
+    public Map<String, Object> apply(Object record) {
+        Map<String, Object> entity = new LinkedHashMap<>();
+        for (FieldMapping fieldMapping : fieldMappings) {
+            Object value = read(record, fieldMapping);
+            if (value == null || value instanceof String && ((String) value).isEmpty()) {
+                value = fieldMapping.defaultValue;
+            }
+            if (value != null && fieldMapping.type != null) {
+                value = convert(value, fieldMapping);
+            }
+            write(entity, fieldMapping.targetPath, value);
+        }
+        return entity;
+    }
+
+    private static Object read(Object record, FieldMapping fieldMapping) {
+        if (record instanceof Map && ((Map<?, ?>) record).containsKey(fieldMapping.source)) {
+            return ((Map<?, ?>) record).get(fieldMapping.source);
+        }
+        Object value = record;
+        for (String segment : fieldMapping.sourcePath) {
+            if (value instanceof Map) {
+                value = ((Map<?, ?>) value).get(segment);
+            } else if (value instanceof List && StringUtils.isNumeric(segment)) {
+                List<?> list = (List<?>) value;
+                int index = Integer.parseInt(segment);
+                value = index < list.size() ? list.get(index) : null;
+            } else {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(Map<String, Object> entity, String[] targetPath, Object value) {
+        Map<String, Object> parent = entity;
+        for (int i = 0; i < targetPath.length - 1; i++) {
+            Object child = parent.get(targetPath[i]);
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                parent.put(targetPath[i], child);
+            }
+            parent = (Map<String, Object>) child;
+        }
+        parent.put(targetPath[targetPath.length - 1], value);
+    }
+
+    private static Object convert(Object value, FieldMapping fieldMapping) {
+        String text = value.toString().trim();
+        try {
+            switch (fieldMapping.type) {
+                case TYPE_STRING:
+                    return value instanceof Map || value instanceof List ? value : value.toString();
+                case TYPE_INTEGER:
+                    // Fails for fractions and for values outside the long range rather than cutting them.
+                    return toDecimal(value, text).longValueExact();
+                case TYPE_NUMBER:
+                    return toDecimal(value, text);
+                case TYPE_BOOLEAN:
+                    if (value instanceof Boolean) {
+                        return value;
+                    } else if (Boolean.TRUE.toString().equalsIgnoreCase(text) ||
+                            Boolean.FALSE.toString().equalsIgnoreCase(text)) {
+                        return Boolean.valueOf(text);
+                    }
+                    break;
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Reported below with the field name.
+        }
+        throw new IllegalArgumentException(String.format(ERR_CONVERSION, text, fieldMapping.source,
+                fieldMapping.type));
+    }
+
+    private static BigDecimal toDecimal(Object value, String text) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        return new BigDecimal(value instanceof Number ? value.toString() : text);
+    }
+}
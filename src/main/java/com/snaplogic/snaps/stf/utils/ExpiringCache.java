@@ -0,0 +1,117 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded in-memory cache whose entries expire after a TTL, with a separate TTL for negative answers.
+ * <p>
+ * Instances obtained through {@link #shared} are kept per node and reused by every pipeline execution that
+ * asks for the same name and settings, so hot keys stay warm across executions. At most
+ * {@value #MAX_SHARED_CACHES} of them are kept, and one that no execution has asked for in
+ * {@value #SHARED_CACHE_IDLE_MINUTES} minutes is dropped, so that changing settings does not pile up caches.
+ *
+ * @param <K> cache key
+ * @param <V> cached value
+ */
+public class ExpiringCache<K, V> {
+    private static final int MAX_SHARED_CACHES = 64;
+    private static final int SHARED_CACHE_IDLE_MINUTES = 60;
+    private static final Cache<String, ExpiringCache<?, ?>> SHARED_CACHES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SHARED_CACHES)
+            .expireAfterAccess(SHARED_CACHE_IDLE_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private static final String SHARED_KEY_FORMAT = "%s:%d:%d:%d";
+
+    private final Cache<K, Entry<V>> cache;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public ExpiringCache(long ttlMillis, long negativeTtlMillis, long maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(Math.max(ttlNanos, negativeTtlNanos), TimeUnit.NANOSECONDS)
+                .<K, Entry<V>>removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        evictionCount.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> ExpiringCache<K, V> shared(String name, long ttlMillis, long negativeTtlMillis,
+                                                    long maxEntries) {
+        String key = String.format(SHARED_KEY_FORMAT, name, ttlMillis, negativeTtlMillis, maxEntries);
+        try {
+            return (ExpiringCache<K, V>) SHARED_CACHES.get(key, () -> new ExpiringCache<>(ttlMillis,
+                    negativeTtlMillis, maxEntries));
+        } catch (java.util.concurrent.ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalArgumentException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the cached value, or null when the key is absent or its entry has expired.
+     */
+    public V get(K key) {
+        Entry<V> entry = cache.getIfPresent(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hitCount.incrementAndGet();
+            return entry.value;
+        }
+        if (entry != null) {
+            cache.invalidate(key);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    public void put(K key, V value, boolean negative) {
+        long ttl = negative ? negativeTtlNanos : ttlNanos;
+        if (ttl > 0) {
+            cache.put(key, new Entry<>(value, System.nanoTime() + ttl));
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d, hits=%d, misses=%d, evictions=%d", size(), getHitCount(),
+                getMissCount(), getEvictionCount());
+    }
+}
@@ -0,0 +1,151 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of field paths to keep while parsing a JSON response. Subtrees outside the paths are skipped at the
+ * token level and never materialised. Paths are JSON pointers ({@code /a/b}) or dotted paths ({@code a.b});
+ * arrays are traversed transparently and {@code *} matches any field name.
+ */
+public class FieldProjection {
+    private static final String PATH_SEPARATOR = ",";
+    private static final String POINTER_PREFIX = "/";
+    private static final String WILDCARD = "*";
+    private static final Object SKIPPED = new Object();
+
+    private final Node root;
+    private final String paths;
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean keepAll;
+
+        Node child(String name) {
+            if (keepAll) {
+                return this;
+            }
+            Node child = children.get(name);
+            return child != null ? child : children.get(WILDCARD);
+        }
+    }
+
+    private FieldProjection(Node root, String paths) {
+        this.root = root;
+        this.paths = paths;
+    }
+
+    /**
+     * Parses a comma-separated list of paths, returning null when there is nothing to project.
+     */
+    public static FieldProjection parse(String paths) {
+        if (StringUtils.isBlank(paths)) {
+            return null;
+        }
+        Node root = new Node();
+        for (String path : StringUtils.split(paths, PATH_SEPARATOR)) {
+            path = path.trim();
+            List<String> segments = new ArrayList<>();
+            if (path.startsWith(POINTER_PREFIX)) {
+                for (String segment : StringUtils.split(path, POINTER_PREFIX)) {
+                    segments.add(segment.replace("~1", "/").replace("~0", "~"));
+                }
+            } else {
+                for (String segment : StringUtils.split(path, '.')) {
+                    segments.add(segment);
+                }
+            }
+            if (segments.isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            for (String segment : segments) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.keepAll = true;
+        }
+        return root.children.isEmpty() ? null : new FieldProjection(root, paths);
+    }
+
+    /**
+     * Returns the same projection applied to the value of the given top-level field instead of the root.
+     */
+    public FieldProjection nestedUnder(String fieldName) {
+        Node wrapper = new Node();
+        wrapper.children.put(fieldName, root);
+        return new FieldProjection(wrapper, fieldName + POINTER_PREFIX + paths);
+    }
+
+    /**
+     * Returns the same projection applied to the value of every top-level field, for responses keyed by id.
+     */
+    public FieldProjection underEveryField() {
+        return nestedUnder(WILDCARD);
+    }
+
+    /**
+     * Reads the value at the parser's current token, keeping only the projected fields. The parser must have
+     * been created by an ObjectMapper so that kept subtrees can be bound.
+     */
+    public Map read(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == null) {
+            parser.nextToken();
+        }
+        Object value = read(parser, root);
+        return value instanceof Map ? (Map) value : new LinkedHashMap();
+    }
+
+    private static Object read(JsonParser parser, Node node) throws IOException {
+        if (node.keepAll) {
+            return parser.readValueAs(Object.class);
+        }
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                Node child = node.child(fieldName);
+                if (child == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                Object value = read(parser, child);
+                if (value != SKIPPED) {
+                    map.put(fieldName, value);
+                }
+            }
+            return map;
+        } else if (token == JsonToken.START_ARRAY) {
+            List<Object> list = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                Object value = read(parser, node);
+                if (value != SKIPPED) {
+                    list.add(value);
+                }
+            }
+            return list;
+        }
+        // A scalar where the paths expect more structure cannot match any of them.
+        return SKIPPED;
+    }
+
+    @Override
+    public String toString() {
+        return paths;
+    }
+}
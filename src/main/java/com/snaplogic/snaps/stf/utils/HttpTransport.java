@@ -0,0 +1,122 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pooled HTTP transport shared by every snap in the STF pack.
+ * <p>
+ * Connections are pooled per route and kept alive between pipeline executions, so calls to the TFW and
+ * mapping services reuse sockets instead of paying a TCP/TLS handshake per request. Pool limits can be tuned
+ * on the Snaplex node with the {@value #MAX_TOTAL_PROPERTY} and {@value #MAX_PER_ROUTE_PROPERTY} system
+ * properties.
+ */
+public final class HttpTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpTransport.class);
+    static final String MAX_TOTAL_PROPERTY = "stf.http.maxTotal";
+    static final String MAX_PER_ROUTE_PROPERTY = "stf.http.maxPerRoute";
+    static final String IDLE_TIMEOUT_PROPERTY = "stf.http.idleTimeoutSec";
+    private static final int DEFAULT_MAX_TOTAL = 200;
+    private static final int DEFAULT_MAX_PER_ROUTE = 50;
+    private static final int DEFAULT_IDLE_TIMEOUT_SEC = 60;
+    private static final int SOCKET_TIMEOUT_SEC = 900;
+    private static final int CONN_TIMEOUT_SEC = 30;
+    private static final int LEASE_TIMEOUT_SEC = 30;
+    private static final int REAPER_INTERVAL_SEC = 30;
+    private static final HttpTransport INSTANCE = new HttpTransport();
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final RequestConfig requestConfig;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledExecutorService scheduler;
+
+    private HttpTransport() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Integer.getInteger(MAX_TOTAL_PROPERTY, DEFAULT_MAX_TOTAL));
+        connectionManager.setDefaultMaxPerRoute(Integer.getInteger(MAX_PER_ROUTE_PROPERTY,
+                DEFAULT_MAX_PER_ROUTE));
+        requestConfig = RequestConfig.custom()
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(SOCKET_TIMEOUT_SEC))
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(CONN_TIMEOUT_SEC))
+                .setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(LEASE_TIMEOUT_SEC))
+                .build();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .build();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stf-http-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startIdleConnectionReaper(Integer.getInteger(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_SEC));
+    }
+
+    public static HttpTransport getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Executes the request on the shared pool. The caller must consume the response entity and close the
+     * response so that the connection is released back to the pool.
+     */
+    public CloseableHttpResponse execute(HttpUriRequest httpRequest) throws IOException {
+        CloseableHttpResponse httpResponse = httpClient.execute(httpRequest);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Pool utilisation after {} {}: {}", httpRequest.getMethod(),
+                    httpRequest.getURI().getHost(), getTotalStats());
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Returns the transport timeouts capped at the time left until a call's deadline.
+     */
+    public RequestConfig requestConfig(long remainingMillis) {
+        int remaining = (int) Math.min(Math.max(remainingMillis, 1), Integer.MAX_VALUE);
+        return RequestConfig.copy(requestConfig)
+                .setSocketTimeout(Math.min(requestConfig.getSocketTimeout(), remaining))
+                .setConnectTimeout(Math.min(requestConfig.getConnectTimeout(), remaining))
+                .setConnectionRequestTimeout(Math.min(requestConfig.getConnectionRequestTimeout(), remaining))
+                .build();
+    }
+
+    /**
+     * Runs a short task on the transport's timer thread after the delay, such as aborting a request that is
+     * still running at its deadline. Tasks must not block.
+     */
+    public ScheduledFuture<?> runAfter(Runnable task, long delayNanos) {
+        return scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public PoolStats getStats(HttpRoute route) {
+        return connectionManager.getStats(route);
+    }
+
+    private void startIdleConnectionReaper(final int idleTimeoutSec) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeoutSec, TimeUnit.SECONDS);
+        }, REAPER_INTERVAL_SEC, REAPER_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,136 @@
+package com.snaplogic.snaps.stf.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable, compact set of group member ids. Canonical numeric ids are kept unboxed in a sorted
+ * {@code long[]} and searched with a binary search; any other id is interned into a hash set.
+ */
+public class MembershipIndex {
+    private static final int LONG_BYTES = 8;
+    private static final int STRING_OVERHEAD_BYTES = 72;
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private final long[] numericIds;
+    private final Set<String> otherIds;
+    private final long estimatedBytes;
+
+    private MembershipIndex(long[] numericIds, Set<String> otherIds, long estimatedBytes) {
+        this.numericIds = numericIds;
+        this.otherIds = otherIds;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public static Builder builder(long maxBytes) {
+        return new Builder(maxBytes);
+    }
+
+    /**
+     * Collects member ids one at a time, so that a group over the memory ceiling is noticed while its members
+     * are still being read rather than after all of them are held.
+     */
+    public static class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final long maxBytes;
+        private final Set<String> otherIds = new HashSet<>();
+        private long[] numericIds;
+        private int numericCount;
+        private long estimatedBytes;
+        private boolean overBudget;
+
+        private Builder(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.numericIds = new long[(int) Math.max(0, Math.min(INITIAL_CAPACITY, maxBytes / LONG_BYTES))];
+        }
+
+        /**
+         * Adds a member, returning false once the estimated footprint has exceeded the ceiling; later
+         * members are then ignored.
+         */
+        public boolean add(Object member) {
+            if (overBudget) {
+                return false;
+            }
+            if (member == null) {
+                return true;
+            }
+            String id = member.toString();
+            if (isCanonicalLong(id)) {
+                estimatedBytes += LONG_BYTES;
+                if (estimatedBytes <= maxBytes) {
+                    if (numericCount == numericIds.length) {
+                        // Never grow past what the ceiling allows.
+                        numericIds = Arrays.copyOf(numericIds, (int) Math.min(Integer.MAX_VALUE - 8,
+                                Math.max(numericCount + 1L, Math.min(2L * numericCount, maxBytes / LONG_BYTES))));
+                    }
+                    numericIds[numericCount++] = Long.parseLong(id);
+                }
+            } else if (!otherIds.contains(id)) {
+                estimatedBytes += STRING_OVERHEAD_BYTES + 2L * id.length();
+                if (estimatedBytes <= maxBytes) {
+                    otherIds.add(id.intern());
+                }
+            }
+            if (estimatedBytes > maxBytes) {
+                overBudget = true;
+                numericIds = null;
+                otherIds.clear();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the index, or null when the members exceeded the ceiling.
+         */
+        public MembershipIndex build() {
+            if (overBudget) {
+                return null;
+            }
+            long[] sortedIds = Arrays.copyOf(numericIds, numericCount);
+            Arrays.sort(sortedIds);
+            return new MembershipIndex(sortedIds, otherIds, estimatedBytes);
+        }
+    }
+
+    public boolean contains(String entityId) {
+        if (isCanonicalLong(entityId)) {
+            return Arrays.binarySearch(numericIds, Long.parseLong(entityId)) >= 0;
+        }
+        return otherIds.contains(entityId);
+    }
+
+    public int size() {
+        return numericIds.length + otherIds.size();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Only ids that round-trip through {@link Long#toString} are stored as numbers, so "007" and "7" stay
+     * distinct members.
+     */
+    private static boolean isCanonicalLong(String id) {
+        int length = id.length();
+        if (length == 0 || length > MAX_LONG_DIGITS) {
+            return false;
+        }
+        int start = id.charAt(0) == '-' ? 1 : 0;
+        if (start == length || (id.charAt(start) == '0' && length > start + 1) ||
+                (start == 1 && id.charAt(1) == '0')) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
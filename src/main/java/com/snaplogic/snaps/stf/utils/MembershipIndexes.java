@@ -0,0 +1,154 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads full group memberships on first use and keeps them as {@link MembershipIndex}es, refreshing
+ * them in the background. Once the combined footprint would exceed the memory ceiling a group gets no
+ * index, and {@link #get} returns null so that callers fall back to remote lookups.
+ *
+ * @param <K> group key
+ */
+public class MembershipIndexes<K> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MembershipIndexes.class);
+
+    /**
+     * Fetches every member id of a group into the builder as the ids are read.
+     */
+    public interface Loader<K> {
+        void load(K groupKey, MembershipIndex.Builder members) throws IOException;
+    }
+
+    /**
+     * Placeholder for groups that are over the ceiling or failed to load, until the next refresh.
+     */
+    private static final MembershipIndex UNAVAILABLE = MembershipIndex.builder(0).build();
+
+    private final Loader<K> loader;
+    private final long maxBytes;
+    private final long refreshMillis;
+    private final Map<K, MembershipIndex> indexes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService refreshExecutor;
+
+    public MembershipIndexes(Loader<K> loader, long maxBytes, long refreshMillis) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Returns the index for the group, loading it on first use, or null when it is not available locally.
+     */
+    public synchronized MembershipIndex get(K groupKey) {
+        MembershipIndex index = indexes.get(groupKey);
+        if (index == null) {
+            index = load(groupKey, budgetFor(groupKey));
+            if (index == null) {
+                index = UNAVAILABLE;
+            }
+            indexes.put(groupKey, index);
+            startRefresh();
+        }
+        return index == UNAVAILABLE ? null : index;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+        indexes.clear();
+    }
+
+    /**
+     * Returns the memory left for the group's index next to the indexes of every other group.
+     */
+    private long budgetFor(K groupKey) {
+        long budget = maxBytes;
+        for (Map.Entry<K, MembershipIndex> entry : indexes.entrySet()) {
+            if (!entry.getKey().equals(groupKey)) {
+                budget -= entry.getValue().getEstimatedBytes();
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Returns the new index, {@link #UNAVAILABLE} when it is over the budget, or null when the members could
+     * not be fetched.
+     */
+    private MembershipIndex load(K groupKey, long budget) {
+        try {
+            MembershipIndex.Builder members = MembershipIndex.builder(budget);
+            loader.load(groupKey, members);
+            MembershipIndex index = members.build();
+            if (index == null) {
+                LOGGER.warn("Members of group {} exceed the prefetch memory limit, using remote lookups",
+                        groupKey);
+                return UNAVAILABLE;
+            }
+            LOGGER.info("Prefetched {} members of group {} ({} bytes)", index.size(), groupKey,
+                    index.getEstimatedBytes());
+            return index;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to prefetch members of group {}", groupKey, e);
+            return null;
+        }
+    }
+
+    private void startRefresh() {
+        if (refreshExecutor != null || refreshMillis <= 0) {
+            return;
+        }
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stf-membership-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reloads one group at a time. Members are downloaded without holding the lock, so lookups keep using the
+     * previous index meanwhile; the lock is only taken to size the budget and to swap the new index in, when
+     * the budget is checked again as other groups may have been loaded in the meantime.
+     */
+    private void refresh() {
+        for (K groupKey : new ArrayList<>(indexes.keySet())) {
+            long budget;
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    return;
+                }
+                budget = budgetFor(groupKey);
+            }
+            MembershipIndex index = load(groupKey, budget);
+            // Keep serving the previous index when the members could not be fetched this time.
+            if (index == null) {
+                continue;
+            }
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    return;
+                }
+                if (index != UNAVAILABLE && index.getEstimatedBytes() > budgetFor(groupKey)) {
+                    LOGGER.warn("Members of group {} no longer fit the prefetch memory limit, using remote " +
+                            "lookups", groupKey);
+                    index = UNAVAILABLE;
+                }
+                indexes.put(groupKey, index);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.snaplogic.snaps.stf.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups items by key into batches that are released once they reach the maximum size or once the oldest
+ * item has waited longer than the batch window. Not thread-safe; callers driving it from more than one thread
+ * must synchronize.
+ *
+ * @param <K> grouping key, items only share a batch when their keys are equal
+ * @param <T> batched item
+ */
+public class MicroBatcher<K, T> {
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Map<K, Batch<T>> openBatches = new LinkedHashMap<>();
+
+    private static class Batch<T> {
+        private final List<T> items = new ArrayList<>();
+        private final long startedAt = System.nanoTime();
+    }
+
+    public MicroBatcher(int maxBatchSize, long maxDelayMillis) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+    }
+
+    /**
+     * Adds the item and returns the batches that are ready to be sent, which may be empty.
+     */
+    public List<List<T>> add(K key, T item) {
+        Batch<T> batch = openBatches.get(key);
+        if (batch == null) {
+            batch = new Batch<>();
+            openBatches.put(key, batch);
+        }
+        batch.items.add(item);
+        List<List<T>> ready = new ArrayList<>();
+        if (batch.items.size() >= maxBatchSize) {
+            openBatches.remove(key);
+            ready.add(batch.items);
+        }
+        ready.addAll(expired());
+        return ready;
+    }
+
+    /**
+     * Releases the batches whose oldest item has waited longer than the batch window.
+     */
+    public List<List<T>> expired() {
+        List<List<T>> ready = new ArrayList<>();
+        if (maxDelayNanos > 0) {
+            long now = System.nanoTime();
+            Iterator<Batch<T>> iterator = openBatches.values().iterator();
+            while (iterator.hasNext()) {
+                Batch<T> open = iterator.next();
+                if (now - open.startedAt >= maxDelayNanos) {
+                    iterator.remove();
+                    ready.add(open.items);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Releases every open batch regardless of size or age.
+     */
+    public List<List<T>> drain() {
+        List<List<T>> ready = new ArrayList<>();
+        for (Batch<T> batch : openBatches.values()) {
+            ready.add(batch.items);
+        }
+        openBatches.clear();
+        return ready;
+    }
+}
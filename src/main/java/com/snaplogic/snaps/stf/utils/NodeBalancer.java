@@ -0,0 +1,226 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.snaplogic.snaps.stf.Constants.MAPPING_AUTHORITY;
+import static com.snaplogic.snaps.stf.Constants.TFW_AUTHORITY;
+
+/**
+ * Client-side load balancing of a service's default host over a list of nodes.
+ * <p>
+ * Nodes are listed as comma-separated {@code host:port} values in the {@value #TFW_NODES_PROPERTY} and
+ * {@value #MAPPING_NODES_PROPERTY} system properties; without a list, requests go to the default host as
+ * before. Nodes are ranked by fewest outstanding requests, or with {@value #STRATEGY_PROPERTY} set to
+ * {@value #STRATEGY_EWMA} by their exponentially weighted moving average latency scaled by outstanding
+ * requests. A node that fails {@value #EJECT_AFTER_FAILURES_PROPERTY} times in a row is ejected and only
+ * readmitted once a health check to {@value #HEALTH_PATH_PROPERTY} answers without a server error. Should
+ * every node be ejected, all are used again rather than failing every call.
+ */
+public class NodeBalancer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeBalancer.class);
+    static final String TFW_NODES_PROPERTY = "stf.tfw.nodes";
+    static final String MAPPING_NODES_PROPERTY = "stf.mapping.nodes";
+    static final String STRATEGY_PROPERTY = "stf.lb.strategy";
+    static final String STRATEGY_EWMA = "ewma";
+    static final String EJECT_AFTER_FAILURES_PROPERTY = "stf.lb.ejectAfterFailures";
+    static final String HEALTH_PATH_PROPERTY = "stf.lb.healthPath";
+    static final String HEALTH_CHECK_INTERVAL_PROPERTY = "stf.lb.healthCheckSec";
+    private static final Map<String, String> NODES_PROPERTIES = ImmutableMap.of(
+            TFW_AUTHORITY, TFW_NODES_PROPERTY,
+            MAPPING_AUTHORITY, MAPPING_NODES_PROPERTY);
+    private static final int DEFAULT_EJECT_AFTER_FAILURES = 3;
+    private static final String DEFAULT_HEALTH_PATH = "/";
+    private static final int DEFAULT_HEALTH_CHECK_INTERVAL_SEC = 10;
+    private static final long HEALTH_CHECK_TIMEOUT_MILLIS = 2000;
+    private static final double EWMA_DECAY = 0.2;
+    private static final String NODE_SEPARATOR = ",";
+    private static final String HTTP_URL_FORMAT = "http://%s%s";
+    private static final ConcurrentMap<String, NodeBalancer> BALANCERS = new ConcurrentHashMap<>();
+    private static final NodeBalancer NONE = new NodeBalancer(null, Collections.emptyList());
+
+    private final String authority;
+    private final List<Node> nodes;
+    private final boolean ewma;
+
+    /**
+     * One node of the service with its load and health.
+     */
+    public static class Node {
+        private final String authority;
+        private final String service;
+        private final int ejectAfterFailures;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private double ewmaNanos;
+        private int consecutiveFailures;
+        private boolean ejected;
+
+        Node(String authority, String service, int ejectAfterFailures) {
+            this.authority = authority;
+            this.service = service;
+            this.ejectAfterFailures = ejectAfterFailures;
+        }
+
+        public String getAuthority() {
+            return authority;
+        }
+
+        public void begin() {
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * Ends a request to the node, folding its latency into the node's average and ejecting the node after
+         * too many failures in a row.
+         */
+        public void end(long latencyNanos, boolean failed) {
+            outstanding.decrementAndGet();
+            synchronized (this) {
+                ewmaNanos = ewmaNanos == 0 ? latencyNanos :
+                        EWMA_DECAY * latencyNanos + (1 - EWMA_DECAY) * ewmaNanos;
+                if (!failed) {
+                    consecutiveFailures = 0;
+                    return;
+                }
+                if (++consecutiveFailures >= ejectAfterFailures && !ejected) {
+                    LOGGER.warn("Ejecting {} from {} after {} consecutive failures", authority, service,
+                            consecutiveFailures);
+                    ejected = true;
+                }
+            }
+        }
+
+        /**
+         * Ends a request that was abandoned, such as the losing half of a hedge, without judging the node.
+         */
+        public void cancel() {
+            outstanding.decrementAndGet();
+        }
+
+        synchronized double score(boolean ewma) {
+            return ewma ? Math.max(ewmaNanos, 1) * (outstanding.get() + 1) : outstanding.get();
+        }
+
+        synchronized boolean isEjected() {
+            return ejected;
+        }
+
+        synchronized void readmit() {
+            ejected = false;
+            consecutiveFailures = 0;
+        }
+    }
+
+    private NodeBalancer(String authority, List<Node> nodes) {
+        this.authority = authority;
+        this.nodes = nodes;
+        this.ewma = STRATEGY_EWMA.equalsIgnoreCase(System.getProperty(STRATEGY_PROPERTY));
+    }
+
+    /**
+     * Returns the balancer for a default host, or null when no node list is configured for it.
+     */
+    public static NodeBalancer forAuthority(String authority) {
+        String nodesProperty = NODES_PROPERTIES.get(authority);
+        if (nodesProperty == null) {
+            return null;
+        }
+        NodeBalancer nodeBalancer = BALANCERS.computeIfAbsent(authority, key -> create(key,
+                System.getProperty(nodesProperty)));
+        return nodeBalancer == NONE ? null : nodeBalancer;
+    }
+
+    private static NodeBalancer create(String authority, String nodeList) {
+        int ejectAfterFailures = Integer.getInteger(EJECT_AFTER_FAILURES_PROPERTY, DEFAULT_EJECT_AFTER_FAILURES);
+        List<Node> nodes = new ArrayList<>();
+        for (String node : StringUtils.split(StringUtils.defaultString(nodeList), NODE_SEPARATOR)) {
+            if (StringUtils.isNotBlank(node)) {
+                nodes.add(new Node(node.trim(), authority, ejectAfterFailures));
+            }
+        }
+        if (nodes.isEmpty()) {
+            return NONE;
+        }
+        NodeBalancer nodeBalancer = new NodeBalancer(authority, Collections.unmodifiableList(nodes));
+        nodeBalancer.startHealthChecks(Integer.getInteger(HEALTH_CHECK_INTERVAL_PROPERTY,
+                DEFAULT_HEALTH_CHECK_INTERVAL_SEC));
+        LOGGER.info("Balancing requests for {} over {}", authority, nodeList);
+        return nodeBalancer;
+    }
+
+    /**
+     * Returns the nodes best first, leaving out ejected ones unless every node is ejected. Nodes with the same
+     * score are ordered randomly so that idle nodes share the load.
+     */
+    public List<Node> rank() {
+        List<Node> candidates = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            if (!node.isEjected()) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(nodes);
+        }
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        // Scores move while requests complete, so sort on a snapshot of them.
+        Map<Node, Double> scores = new IdentityHashMap<>();
+        for (Node node : candidates) {
+            scores.put(node, node.score(ewma));
+        }
+        candidates.sort(Comparator.comparingDouble(scores::get));
+        return candidates;
+    }
+
+    private void startHealthChecks(int intervalSec) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stf-node-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        String healthPath = System.getProperty(HEALTH_PATH_PROPERTY, DEFAULT_HEALTH_PATH);
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Node node : nodes) {
+                if (node.isEjected() && isHealthy(node, healthPath)) {
+                    LOGGER.info("Readmitting {} to {}", node.authority, authority);
+                    node.readmit();
+                }
+            }
+        }, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    private static boolean isHealthy(Node node, String healthPath) {
+        HttpGet httpGet = new HttpGet(String.format(HTTP_URL_FORMAT, node.authority, healthPath));
+        HttpTransport httpTransport = HttpTransport.getInstance();
+        httpGet.setConfig(httpTransport.requestConfig(HEALTH_CHECK_TIMEOUT_MILLIS));
+        try (CloseableHttpResponse httpResponse = httpTransport.execute(httpGet)) {
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            return httpResponse.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Health check of {} failed", node.authority, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entity wrapper that counts the bytes written to the wire and logs the upload progress and rate.
+ */
+public class ProgressEntity extends HttpEntityWrapper {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProgressEntity.class);
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final double BYTES_PER_KB = 1024.0;
+
+    private final String target;
+    private long bytesSent;
+    private long startedAt;
+    private long lastLoggedAt;
+
+    public ProgressEntity(HttpEntity wrappedEntity, String target) {
+        super(wrappedEntity);
+        this.target = target;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        startedAt = System.nanoTime();
+        lastLoggedAt = startedAt;
+        bytesSent = 0;
+        wrappedEntity.writeTo(new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                onWritten(1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                onWritten(length);
+            }
+        });
+        LOGGER.info("Uploaded {} bytes to {} at {} KB/s", bytesSent, target, String.format("%.1f", getRate()));
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the average upload rate so far in KB per second.
+     */
+    public double getRate() {
+        long elapsedNanos = System.nanoTime() - startedAt;
+        return elapsedNanos <= 0 ? 0 : bytesSent / BYTES_PER_KB / (elapsedNanos / 1e9);
+    }
+
+    private void onWritten(int length) {
+        bytesSent += length;
+        long now = System.nanoTime();
+        if (now - lastLoggedAt >= LOG_INTERVAL_NANOS) {
+            lastLoggedAt = now;
+            LOGGER.info("Uploading to {}: {} bytes sent at {} KB/s", target, bytesSent,
+                    String.format("%.1f", getRate()));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a CSV, JSON lines or JSON array file one record at a time, returning every record as its own text so
+ * that records can be re-assembled into a smaller file of the same format. CSV records may span lines inside
+ * quoted fields; the header line is kept apart and written back in front of the records.
+ * <p>
+ * The format is sniffed from the first non-blank byte: {@code [} is a JSON array, <code>{</code> a sequence
+ * of JSON values such as JSON lines, and anything else CSV.
+ */
+public class RecordReader implements Closeable {
+    // Decimals are bound exactly, so that values parsed from a record match the text it was copied from.
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+    private static final int SNIFF_LIMIT = 4096;
+    private static final char QUOTE = '"';
+    private static final String LINE_SEPARATOR = "\n";
+    private static final String BYTE_ORDER_MARK = "\uFEFF";
+    private static final String ERR_TRUNCATED_RECORD_MSG = "Input ended in the middle of a JSON record";
+
+    public enum Format {
+        CSV, JSON_LINES, JSON_ARRAY
+    }
+
+    private final Format format;
+    private final BufferedReader csvReader;
+    private final JsonParser jsonParser;
+    private final String header;
+    private final List<String> columns;
+
+    private RecordReader(InputStream inputStream) throws IOException {
+        BufferedInputStream bufferedStream = new BufferedInputStream(inputStream);
+        format = sniff(bufferedStream);
+        if (format == Format.CSV) {
+            csvReader = new BufferedReader(new InputStreamReader(bufferedStream, StandardCharsets.UTF_8));
+            jsonParser = null;
+            header = StringUtils.removeStart(readCsvRecord(), BYTE_ORDER_MARK);
+            columns = header == null ? new ArrayList<>() : splitCsv(header);
+        } else {
+            csvReader = null;
+            jsonParser = OBJECT_MAPPER.getFactory().createParser(bufferedStream);
+            if (format == Format.JSON_ARRAY) {
+                jsonParser.nextToken();
+            }
+            header = null;
+            columns = null;
+        }
+    }
+
+    public static RecordReader open(InputStream inputStream) throws IOException {
+        return new RecordReader(inputStream);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the CSV header line, or null for JSON input.
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the text of the next record, or null at the end of the input.
+     */
+    public String next() throws IOException {
+        if (format == Format.CSV) {
+            String record;
+            do {
+                record = readCsvRecord();
+            } while (record != null && record.isEmpty());
+            return record;
+        }
+        JsonToken token = jsonParser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            return null;
+        }
+        StringWriter record = new StringWriter();
+        try (JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(record)) {
+            copyRecord(generator);
+        }
+        return record.toString();
+    }
+
+    /**
+     * Copies the value at the current token token by token, without building a tree. Numbers are copied as
+     * their original text, so no precision is lost on the way.
+     */
+    private void copyRecord(JsonGenerator generator) throws IOException {
+        int depth = 0;
+        JsonToken token = jsonParser.getCurrentToken();
+        while (true) {
+            if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+                generator.writeNumber(jsonParser.getText());
+            } else {
+                generator.copyCurrentEvent(jsonParser);
+            }
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                depth++;
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            }
+            if (depth == 0) {
+                return;
+            }
+            token = jsonParser.nextToken();
+            if (token == null) {
+                throw new IOException(ERR_TRUNCATED_RECORD_MSG);
+            }
+        }
+    }
+
+    /**
+     * Parses the text of a record returned by {@link #next}: CSV records become a map of column name to raw
+     * field text, JSON records their bound value. Safe to call from several threads.
+     */
+    public Object parse(String record) throws IOException {
+        if (format != Format.CSV) {
+            return OBJECT_MAPPER.readValue(record, Object.class);
+        }
+        List<String> fields = splitCsv(record);
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            values.put(i < columns.size() ? columns.get(i) : String.valueOf(i), fields.get(i));
+        }
+        return values;
+    }
+
+    /**
+     * Writes the records as a file of the same format as the input, with the CSV header first.
+     */
+    public void write(List<String> records, OutputStream outputStream) throws IOException {
+        StringBuilder content = new StringBuilder();
+        if (format == Format.JSON_ARRAY) {
+            content.append('[');
+        } else if (header != null) {
+            content.append(header).append(LINE_SEPARATOR);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                content.append(format == Format.JSON_ARRAY ? "," : LINE_SEPARATOR);
+            }
+            content.append(records.get(i));
+        }
+        if (format == Format.JSON_ARRAY) {
+            content.append(']');
+        } else if (!records.isEmpty()) {
+            content.append(LINE_SEPARATOR);
+        }
+        outputStream.write(content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (csvReader != null) {
+            csvReader.close();
+        } else {
+            jsonParser.close();
+        }
+    }
+
+    private static Format sniff(BufferedInputStream inputStream) throws IOException {
+        inputStream.mark(SNIFF_LIMIT);
+        try {
+            for (int i = 0; i < SNIFF_LIMIT; i++) {
+                int b = inputStream.read();
+                if (b == '[') {
+                    return Format.JSON_ARRAY;
+                } else if (b == '{') {
+                    return Format.JSON_LINES;
+                } else if (b < 0 || !Character.isWhitespace(b) && b != 0xEF && b != 0xBB && b != 0xBF) {
+                    // Anything but whitespace or a UTF-8 byte order mark starts a CSV file.
+                    return Format.CSV;
+                }
+            }
+            return Format.CSV;
+        } finally {
+            inputStream.reset();
+        }
+    }
+
+    /**
+     * Splits a CSV record into its unquoted fields.
+     */
+    private static List<String> splitCsv(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == QUOTE) {
+                if (quoted && i + 1 < record.length() && record.charAt(i + 1) == QUOTE) {
+                    field.append(QUOTE);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Reads up to the next line break outside a quoted field, dropping the line break.
+     */
+    private String readCsvRecord() throws IOException {
+        StringBuilder record = new StringBuilder();
+        boolean quoted = false;
+        int c;
+        while ((c = csvReader.read()) >= 0) {
+            if (c == QUOTE) {
+                quoted = !quoted;
+            } else if (c == '\n' && !quoted) {
+                break;
+            }
+            record.append((char) c);
+        }
+        if (c < 0 && record.length() == 0) {
+            return null;
+        }
+        int length = record.length();
+        if (length > 0 && record.charAt(length - 1) == '\r') {
+            record.setLength(length - 1);
+        }
+        return record.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.snaplogic.snaps.stf.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks a sample of whole records from a {@link RecordReader}.
+ */
+public class RecordSampler {
+    // Buffers start small and grow with the records read, so a large sample size costs nothing on a short input.
+    private static final int INITIAL_CAPACITY = 64;
+
+    private RecordSampler() {
+    }
+
+    /**
+     * Returns the first sampleSize records, reading no further than that.
+     */
+    public static List<String> head(RecordReader reader, int sampleSize) throws IOException {
+        List<String> records = new ArrayList<>(Math.min(sampleSize, INITIAL_CAPACITY));
+        String record;
+        while (records.size() < sampleSize && (record = reader.next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Returns a uniform random sample of sampleSize records from the whole input in a single pass
+     * (reservoir sampling), keeping the sampled records in their input order.
+     */
+    public static List<String> reservoir(RecordReader reader, int sampleSize) throws IOException {
+        List<String> records = new ArrayList<>(Math.min(sampleSize, INITIAL_CAPACITY));
+        long[] positions = new long[Math.min(sampleSize, INITIAL_CAPACITY)];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long seen = 0;
+        String record;
+        while ((record = reader.next()) != null) {
+            long slot = seen < sampleSize ? seen : random.nextLong(seen + 1);
+            if (seen < sampleSize) {
+                if (slot == positions.length) {
+                    positions = Arrays.copyOf(positions, (int) Math.min(sampleSize, 2L * positions.length));
+                }
+                records.add(record);
+                positions[(int) slot] = seen;
+            } else if (slot < sampleSize) {
+                records.set((int) slot, record);
+                positions[(int) slot] = seen;
+            }
+            seen++;
+        }
+        int size = records.size();
+        long[] recordPositions = positions;
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(recordPositions[a], recordPositions[b]));
+        List<String> sample = new ArrayList<>(size);
+        for (int slot : order) {
+            sample.add(records.get(slot));
+        }
+        return sample;
+    }
+}
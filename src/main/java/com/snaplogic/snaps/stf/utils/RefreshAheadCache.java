@@ -0,0 +1,125 @@
+package com.snaplogic.snaps.stf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache that reloads entries in the background before they expire.
+ * <p>
+ * Every loaded entry schedules its own refresh at a jittered point between 70% and 90% of its TTL, so
+ * refreshes of many keys do not line up. The refresh only happens if the entry was read since it was loaded;
+ * entries nobody asked for are left to expire.
+ *
+ * @param <K> cache key
+ * @param <V> cached value
+ */
+public class RefreshAheadCache<K, V> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RefreshAheadCache.class);
+    private static final double REFRESH_AHEAD_MIN_FRACTION = 0.7;
+    private static final double REFRESH_AHEAD_JITTER_FRACTION = 0.2;
+
+    /**
+     * Computes the value for a key, typically with a remote call.
+     */
+    public interface Loader<K, V> {
+        V load(K key) throws IOException;
+    }
+
+    private final Loader<K, V> loader;
+    private final long ttlNanos;
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService refreshExecutor;
+    private boolean closed;
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+        private volatile boolean accessed;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public RefreshAheadCache(Loader<K, V> loader, long ttlMillis) {
+        this.loader = loader;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached value without loading, or null when the key is absent or expired.
+     */
+    public V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.expiresAt - System.nanoTime() <= 0) {
+            return null;
+        }
+        entry.accessed = true;
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached value, loading it on the caller's thread when it is absent or expired.
+     */
+    public V get(K key) throws IOException {
+        V value = getIfPresent(key);
+        if (value == null) {
+            value = loader.load(key);
+            store(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+        entries.clear();
+    }
+
+    private void store(K key, V value) {
+        Entry<V> entry = new Entry<>(value, System.nanoTime() + ttlNanos);
+        entries.put(key, entry);
+        double refreshFraction = REFRESH_AHEAD_MIN_FRACTION +
+                ThreadLocalRandom.current().nextDouble() * REFRESH_AHEAD_JITTER_FRACTION;
+        scheduleRefresh(key, entry, (long) (ttlNanos * refreshFraction));
+    }
+
+    private synchronized void scheduleRefresh(K key, Entry<V> entry, long delayNanos) {
+        if (closed) {
+            return;
+        }
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stf-refresh-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        refreshExecutor.schedule(() -> refresh(key, entry), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void refresh(K key, Entry<V> entry) {
+        if (entries.get(key) != entry || !entry.accessed) {
+            return;
+        }
+        try {
+            store(key, loader.load(key));
+        } catch (IOException | RuntimeException e) {
+            // The current value stays in use until it expires; the next read after that reloads it.
+            LOGGER.warn("Failed to refresh cached value for {}", key, e);
+        }
+    }
+}
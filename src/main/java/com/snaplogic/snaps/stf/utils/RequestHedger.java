@@ -0,0 +1,88 @@
+package com.snaplogic.snaps.stf.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node-wide latency window and hedge budget per endpoint (host and port).
+ * <p>
+ * The latencies of the last {@value #WINDOW_SIZE} completed requests give the delay after which a request is
+ * considered slow and may be hedged with a duplicate. Hedges are only granted while they stay under the given
+ * percentage of the requests sent to the endpoint, so that hedging cannot multiply load on a slow service.
+ */
+public class RequestHedger {
+    private static final int WINDOW_SIZE = 1000;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_INTERVAL = 50;
+    private static final long REQUEST_COUNT_HALF_LIFE = 10000;
+    private static final ConcurrentMap<String, RequestHedger> HEDGERS = new ConcurrentHashMap<>();
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int sampleCount;
+    private int nextSample;
+    private int samplesSinceComputed;
+    private int computedPercentile;
+    private long computedDelayNanos = -1;
+    private long requestCount;
+    private long hedgeCount;
+
+    private RequestHedger() {
+    }
+
+    public static RequestHedger forEndpoint(String endpoint) {
+        return HEDGERS.computeIfAbsent(endpoint, key -> new RequestHedger());
+    }
+
+    public synchronized void recordLatency(long latencyNanos) {
+        latencies[nextSample] = latencyNanos;
+        nextSample = (nextSample + 1) % WINDOW_SIZE;
+        sampleCount = Math.min(sampleCount + 1, WINDOW_SIZE);
+        samplesSinceComputed++;
+    }
+
+    /**
+     * Returns the latency at the percentile of the window, or -1 while too few requests have completed to tell.
+     * The percentile is recomputed every {@value #RECOMPUTE_INTERVAL} samples.
+     */
+    public synchronized long hedgeDelayNanos(int percentile) {
+        if (sampleCount < MIN_SAMPLES) {
+            return -1;
+        }
+        if (computedDelayNanos < 0 || percentile != computedPercentile ||
+                samplesSinceComputed >= RECOMPUTE_INTERVAL) {
+            long[] sorted = Arrays.copyOf(latencies, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            computedDelayNanos = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+            computedPercentile = percentile;
+            samplesSinceComputed = 0;
+        }
+        return computedDelayNanos;
+    }
+
+    /**
+     * Counts a request that could be hedged. Counts decay so that the budget follows recent traffic.
+     */
+    public synchronized void recordRequest() {
+        if (++requestCount > REQUEST_COUNT_HALF_LIFE) {
+            requestCount /= 2;
+            hedgeCount /= 2;
+        }
+    }
+
+    /**
+     * Grants a hedge when it keeps hedges at or below the percentage of requests.
+     */
+    public synchronized boolean tryHedge(int maxHedgePercent) {
+        if ((hedgeCount + 1) * 100 > (long) maxHedgePercent * requestCount) {
+            return false;
+        }
+        hedgeCount++;
+        return true;
+    }
+
+    public synchronized long getHedgeCount() {
+        return hedgeCount;
+    }
+}
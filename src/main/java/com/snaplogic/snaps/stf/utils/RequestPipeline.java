@@ -0,0 +1,279 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.ErrorViews;
+import com.snaplogic.snap.api.SnapDataException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs per-document requests with a bounded number in flight and hands the results back on the thread
+ * driving it, either in submission order or as soon as they complete.
+ * <p>
+ * {@link #submit} blocks while the window is full, so a slow output view throttles how fast new requests are
+ * issued. With a window of one the call runs inline on the caller's thread.
+ *
+ * @param <C> context correlated with each request, typically the input document
+ * @param <T> request result
+ */
+public class RequestPipeline<C, T> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestPipeline.class);
+    private static final String ERR_REQUEST_FAILED_MSG = "Request failed: %s";
+    private static final String ERR_INTERRUPTED_MSG = "Interrupted while waiting for in-flight requests";
+
+    /**
+     * Receives request outcomes; always invoked on the thread calling {@link #submit}, {@link #poll} or
+     * {@link #drain}.
+     */
+    public interface Handler<C, T> {
+        void onResult(C context, T result);
+
+        void onError(C context, RuntimeException error);
+    }
+
+    private final String name;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final Handler<C, T> handler;
+    private final Deque<Pending<C, T>> pending = new ArrayDeque<>();
+    private final Map<Future<T>, C> unorderedContexts = new IdentityHashMap<>();
+    private ExecutorService executorService;
+    private CompletionService<T> completionService;
+
+    private static class Pending<C, T> {
+        private final C context;
+        private final Future<T> future;
+
+        Pending(C context, Future<T> future) {
+            this.context = context;
+            this.future = future;
+        }
+    }
+
+    public RequestPipeline(String name, int maxInFlight, boolean ordered, Handler<C, T> handler) {
+        this.name = name;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.ordered = ordered;
+        this.handler = handler;
+    }
+
+    /**
+     * Returns a handler for requests made on behalf of input documents: results go to the writer and
+     * {@link SnapDataException} failures to the error view against their document. Any other failure is rethrown
+     * and stops the snap.
+     */
+    public static <T> Handler<Document, T> forDocuments(final BiConsumer<Document, T> resultWriter,
+                                                        final ErrorViews errorViews) {
+        return new Handler<Document, T>() {
+            @Override
+            public void onResult(Document document, T result) {
+                resultWriter.accept(document, result);
+            }
+
+            @Override
+            public void onError(Document document, RuntimeException error) {
+                if (error instanceof SnapDataException) {
+                    errorViews.write((SnapDataException) error, document);
+                } else {
+                    throw error;
+                }
+            }
+        };
+    }
+
+    public void submit(C context, Callable<T> call) {
+        if (maxInFlight == 1) {
+            complete(context, call);
+            return;
+        }
+        ensureStarted();
+        if (ordered) {
+            emitCompletedHead();
+            while (pending.size() >= maxInFlight) {
+                emit(pending.poll());
+            }
+            pending.add(new Pending<>(context, executorService.submit(call)));
+        } else {
+            emitCompletedUnordered();
+            while (unorderedContexts.size() >= maxInFlight) {
+                emit(take());
+            }
+            unorderedContexts.put(completionService.submit(call), context);
+        }
+    }
+
+    /**
+     * Hands over a result that is already known, such as a cache hit, without occupying a worker. In ordered
+     * mode it is still emitted after the results of every earlier request.
+     */
+    public void submitCompleted(C context, T result) {
+        if (ordered && !pending.isEmpty()) {
+            enqueueCompleted(context, CompletableFuture.completedFuture(result));
+        } else {
+            handler.onResult(context, result);
+        }
+    }
+
+    /**
+     * Hands over a failure that is already known, such as an invalid request, without occupying a worker. In
+     * ordered mode it is still emitted after the results of every earlier request.
+     */
+    public void submitFailed(C context, RuntimeException error) {
+        if (ordered && !pending.isEmpty()) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(error);
+            enqueueCompleted(context, failed);
+        } else {
+            handler.onError(context, error);
+        }
+    }
+
+    /**
+     * Emits the results of requests that have already completed, without waiting for the others.
+     */
+    public void poll() {
+        emitCompletedHead();
+        if (completionService != null) {
+            emitCompletedUnordered();
+        }
+    }
+
+    /**
+     * Waits for every in-flight request and emits the remaining results.
+     */
+    public void drain() {
+        while (!pending.isEmpty()) {
+            emit(pending.poll());
+        }
+        while (!unorderedContexts.isEmpty()) {
+            emit(take());
+        }
+    }
+
+    /**
+     * Runs the snap's document loop, then waits for the requests it left in flight. The pipeline is closed
+     * whether or not the loop completes.
+     */
+    public void run(Runnable documentLoop) {
+        try {
+            documentLoop.run();
+            drain();
+        } finally {
+            close();
+        }
+    }
+
+    public int getInFlight() {
+        return pending.size() + unorderedContexts.size();
+    }
+
+    @Override
+    public void close() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+        if (getInFlight() > 0) {
+            LOGGER.warn("Discarding {} unfinished requests of {}", getInFlight(), name);
+            pending.clear();
+            unorderedContexts.clear();
+        }
+    }
+
+    private void ensureStarted() {
+        if (executorService == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executorService = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+                Thread thread = new Thread(runnable, String.format("stf-%s-%d", name,
+                        threadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+            completionService = new ExecutorCompletionService<>(executorService);
+        }
+    }
+
+    private void complete(C context, Callable<T> call) {
+        T result;
+        try {
+            result = call.call();
+        } catch (RuntimeException e) {
+            handler.onError(context, e);
+            return;
+        } catch (Exception e) {
+            handler.onError(context, wrap(e));
+            return;
+        }
+        handler.onResult(context, result);
+    }
+
+    private void enqueueCompleted(C context, Future<T> completed) {
+        while (pending.size() >= maxInFlight) {
+            emit(pending.poll());
+        }
+        pending.add(new Pending<>(context, completed));
+        emitCompletedHead();
+    }
+
+    private void emitCompletedHead() {
+        while (!pending.isEmpty() && pending.peek().future.isDone()) {
+            emit(pending.poll());
+        }
+    }
+
+    private void emitCompletedUnordered() {
+        Future<T> future;
+        while ((future = completionService.poll()) != null) {
+            emit(new Pending<>(unorderedContexts.remove(future), future));
+        }
+    }
+
+    private Pending<C, T> take() {
+        try {
+            Future<T> future = completionService.take();
+            return new Pending<>(unorderedContexts.remove(future), future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e, ERR_INTERRUPTED_MSG);
+        }
+    }
+
+    private void emit(Pending<C, T> completed) {
+        T result;
+        try {
+            result = completed.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e, ERR_INTERRUPTED_MSG);
+        } catch (java.util.concurrent.ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            handler.onError(completed.context, cause instanceof RuntimeException ?
+                    (RuntimeException) cause : wrap((Exception) cause));
+            return;
+        }
+        handler.onResult(completed.context, result);
+    }
+
+    private RuntimeException wrap(Exception e) {
+        return new ExecutionException(e, ERR_REQUEST_FAILED_MSG).formatWith(e.getMessage());
+    }
+}
@@ -0,0 +1,131 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Node-wide, size-bounded cache of service responses on local disk, keyed by the content hash of the
+ * uploaded file together with the request parameters. Lets the file snaps skip re-uploading a file whose
+ * content and parameters have not changed since the last run.
+ * <p>
+ * Entries are JSON files under the temporary directory. Reads refresh an entry's modification time and the
+ * least recently used entries are deleted once the cache grows past {@value #MAX_SIZE_PROPERTY} megabytes.
+ */
+public final class ResponseDiskCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseDiskCache.class);
+    static final String DIRECTORY_PROPERTY = "stf.responseCache.dir";
+    static final String MAX_SIZE_PROPERTY = "stf.responseCache.maxMb";
+    private static final String DEFAULT_DIRECTORY_NAME = "stf-response-cache";
+    private static final int DEFAULT_MAX_SIZE_MB = 256;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    private static final String ENTRY_SUFFIX = ".json";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ResponseDiskCache INSTANCE = new ResponseDiskCache();
+
+    private final File directory;
+    private final long maxBytes;
+
+    private ResponseDiskCache() {
+        directory = new File(System.getProperty(DIRECTORY_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME).getPath()));
+        maxBytes = Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB) * BYTES_PER_MB;
+    }
+
+    public static ResponseDiskCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the SHA-256 of the stream content as hex, reading it to the end and closing it.
+     */
+    public static String hash(InputStream inputStream) throws IOException {
+        try (HashingInputStream hashingStream = new HashingInputStream(Hashing.sha256(), inputStream)) {
+            ByteStreams.copy(hashingStream, ByteStreams.nullOutputStream());
+            return hashingStream.hash().toString();
+        }
+    }
+
+    /**
+     * Returns the cached response for the key, or null when there is none or it cannot be read.
+     */
+    public Map get(String key) {
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            Map response = OBJECT_MAPPER.readValue(entry, Map.class);
+            entry.setLastModified(System.currentTimeMillis());
+            return response;
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring unreadable cached response {}", entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response, evicting the least recently used entries when the cache is over its size limit.
+     * Failures are logged and otherwise ignored, since the cache only saves work.
+     */
+    public void put(String key, Map response) {
+        try {
+            Files.createDirectories(directory.toPath());
+            File entry = entryFile(key);
+            File tempFile = File.createTempFile(entry.getName(), null, directory);
+            try {
+                OBJECT_MAPPER.writeValue(tempFile, response);
+                Files.move(tempFile.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+            evict();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache response in {}", directory, e);
+        }
+    }
+
+    private synchronized void evict() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (size <= maxBytes) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                LOGGER.debug("Evicted cached response {}", entry);
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + ENTRY_SUFFIX);
+    }
+}
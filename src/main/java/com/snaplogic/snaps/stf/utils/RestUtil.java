@@ -1,36 +1,130 @@
 package com.snaplogic.snaps.stf.utils;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.snaplogic.api.ExecutionException;
-import com.snaplogic.snap.api.rest.RestHttpClient;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
 import org.apache.http.client.methods.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import static com.snaplogic.snaps.stf.Constants.RESPONSE_TYPE_MAP;
 import static com.snaplogic.snaps.stf.Constants.RESPONSE_TYPE_STRING;
 
 public class RestUtil {
-    private static final int SOCKET_TIMEOUT_SEC = 900;
-    private static final int CONN_TIMEOUT_SEC = 30;
-    private final RestHttpClient restHttpClient = new RestHttpClient();
-    private final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private final HttpTransport httpTransport = HttpTransport.getInstance();
+    private final ConditionalResponseCache conditionalCache = ConditionalResponseCache.getInstance();
     private static final Logger LOGGER = LoggerFactory.getLogger(RestUtil.class);
     private static final String ERR_UNSUPPORTED_HTTP_METHOD_MSG = "Unsupported HTTP method: %s";
+    public static final String ROW_VALUE_KEY = "row";
+    private static final String ERR_SHARED_CALL_FAILED_MSG = "Shared request to %s failed";
+    private static final ConcurrentMap<String, CompletableFuture<RestResponseObject>> IN_FLIGHT_CALLS =
+            new ConcurrentHashMap<>();
+    static final String MAX_ATTEMPTS_PROPERTY = "stf.retry.maxAttempts";
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long RETRY_BASE_DELAY_MILLIS = 200;
+    private static final long RETRY_MAX_DELAY_MILLIS = 5000;
+    private static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of(HttpGet.METHOD_NAME,
+            HttpPut.METHOD_NAME, HttpDelete.METHOD_NAME);
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = ImmutableSet.of(SC_TOO_MANY_REQUESTS,
+            HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT);
+    private static final String ERR_CIRCUIT_OPEN_MSG = "Endpoint %s is failing, not calling it until it recovers";
+    private static final String ERR_DEADLINE_EXCEEDED_MSG = "Call to %s did not complete within %d ms";
+    private static final String ERR_RETRY_INTERRUPTED_MSG = "Interrupted while retrying %s";
+    private static final String ERR_HEDGED_CALL_INTERRUPTED_MSG = "Interrupted while waiting for %s";
+    static final String MAX_HEDGE_THREADS_PROPERTY = "stf.hedge.maxThreads";
+    private static final int DEFAULT_MAX_HEDGE_THREADS = 32;
+    private static final ExecutorService HEDGE_EXECUTOR = new ThreadPoolExecutor(0,
+            Math.max(1, Integer.getInteger(MAX_HEDGE_THREADS_PROPERTY, DEFAULT_MAX_HEDGE_THREADS)), 60,
+            TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "stf-hedged-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private volatile long deadlineMillis;
+    private volatile int maxAttempts;
+    private volatile int hedgePercentile;
+    private volatile int hedgeMaxPercent;
+
+    /**
+     * Where an attempt is sent: the URL with the host of the chosen node, if any, and that host's breaker.
+     */
+    private static class Route {
+        private final String url;
+        private final NodeBalancer.Node node;
+        private final CircuitBreaker circuitBreaker;
+
+        Route(String url, NodeBalancer.Node node, CircuitBreaker circuitBreaker) {
+            this.url = url;
+            this.node = node;
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    /**
+     * A response together with the route that answered it, which for a hedged call may be the hedge's.
+     */
+    private static class Answer {
+        private final Route route;
+        private final RestResponseObject restResponseObject;
+
+        Answer(Route route, RestResponseObject restResponseObject) {
+            this.route = route;
+            this.restResponseObject = restResponseObject;
+        }
+    }
+
+    /**
+     * Sends a request built for one attempt and reads its response.
+     */
+    private interface Exchange {
+        RestResponseObject exchange(HttpUriRequest httpRequest) throws IOException;
+    }
 
     public static class RestResponseObject {
         private StatusLine statusLine;
         private Map body;
+        private boolean rowsFound;
 
         RestResponseObject(StatusLine statusLine) {
             this.statusLine = statusLine;
@@ -40,6 +134,11 @@ public class RestUtil {
             this.body = body;
         }
 
+        RestResponseObject(Map body, boolean rowsFound) {
+            this.body = body;
+            this.rowsFound = rowsFound;
+        }
+
         public StatusLine getStatusLine() {
             return statusLine;
         }
@@ -47,43 +146,653 @@ public class RestUtil {
         public Map getBody() {
             return body;
         }
+
+        /**
+         * Whether a streamed response held an array of rows at all, as opposed to an empty one.
+         */
+        public boolean isRowsFound() {
+            return rowsFound;
+        }
+    }
+
+    /**
+     * Limits every call, including its retries and reading the response, to the given time; 0 leaves calls
+     * bounded only by the transport timeouts.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Sends every retryable call at most the given number of times; 0 leaves the number of attempts to the
+     * {@value #MAX_ATTEMPTS_PROPERTY} system property.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Hedges calls that are still waiting for a response at the percentile of their endpoint's recent latency
+     * with a duplicate request, as long as hedges stay within the given percentage of requests; a percentile
+     * of 0 turns hedging off. Only use for lookups that are safe to send twice. Streamed calls are not hedged.
+     */
+    public void setHedging(int hedgePercentile, int hedgeMaxPercent) {
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMaxPercent = hedgeMaxPercent;
     }
 
     public RestResponseObject invokeHttpCall(String httpMethod, HttpEntity payload, String url, String responseType) throws IOException {
-        HttpUriRequest httpRequest = createHttpRequest(httpMethod, url);
+        return invokeHttpCall(httpMethod, payload, url, responseType, null);
+    }
+
+    /**
+     * Invokes the request, keeping only the projected fields of a map response; a null projection keeps the
+     * whole response. GET requests are sent conditionally when an earlier response to the same request carried
+     * validators, and a 304 Not Modified returns a copy of that response.
+     */
+    public RestResponseObject invokeHttpCall(String httpMethod, HttpEntity payload, String url, String responseType,
+                                             FieldProjection projection) throws IOException {
+        String cacheKey = HttpGet.METHOD_NAME.equals(httpMethod) && payload == null ?
+                httpMethod + ' ' + responseType + ' ' + url + ' ' + projection : null;
+        ConditionalResponseCache.Entry cachedEntry = cacheKey == null ? null : conditionalCache.get(cacheKey);
+        boolean idempotent = isIdempotent(httpMethod, payload);
+        return execute(httpMethod, payload, url, () -> idempotent, true, httpRequest -> {
+            if (cachedEntry != null) {
+                cachedEntry.addValidators(httpRequest);
+            }
+            return exchange(httpRequest, url, responseType, projection, cacheKey, cachedEntry);
+        });
+    }
+
+    private RestResponseObject exchange(HttpUriRequest httpRequest, String url, String responseType,
+                                        FieldProjection projection, String cacheKey,
+                                        ConditionalResponseCache.Entry cachedEntry) throws IOException {
+        try (CloseableHttpResponse httpResponse = httpTransport.execute(httpRequest)) {
+            StatusLine statusLine = httpResponse.getStatusLine();
+            HttpEntity entity = httpResponse.getEntity();
+            if (cachedEntry != null && statusLine != null &&
+                    statusLine.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                EntityUtils.consumeQuietly(entity);
+                conditionalCache.recordNotModified();
+                LOGGER.debug("{} not modified, using cached response", url);
+                return new RestResponseObject((Map) deepCopy(cachedEntry.getBody()));
+            }
+            if (statusLine != null &&
+                    statusLine.getStatusCode() >= HttpStatus.SC_OK &&
+                    statusLine.getStatusCode() <= HttpStatus.SC_ACCEPTED &&
+                    entity != null) {
+                Map map = Maps.newHashMap();
+                try (InputStream inputStream = entity.getContent()) {
+                    switch (responseType) {
+                        case RESPONSE_TYPE_STRING:
+                            String valueToken = IOUtils.toString(inputStream, StandardCharsets.UTF_8.name());
+                            map.put("valueToken", valueToken);
+                            break;
+                        case RESPONSE_TYPE_MAP:
+                            try {
+                                map = projection == null ? OBJECT_MAPPER.readValue(inputStream, Map.class) :
+                                        readProjected(inputStream, projection);
+                            } catch (JsonMappingException e1) {
+                                LOGGER.info("Error occurred while trying to read REST response as a MAP", e1);
+                            }
+                            break;
+                    }
+                }
+                if (cacheKey != null) {
+                    // Copied only when the response carries validators and is actually cached.
+                    Map body = map;
+                    conditionalCache.put(cacheKey, httpResponse, () -> (Map) deepCopy(body));
+                }
+                return new RestResponseObject(map);
+            } else {
+                // Drain the body so the keep-alive connection goes back to the pool.
+                EntityUtils.consumeQuietly(entity);
+                return new RestResponseObject(statusLine);
+            }
+        }
+    }
+
+    /**
+     * Invokes a request and streams the rows of its JSON response to the consumer while the body is still
+     * being read, so memory stays bounded regardless of the result size. Rows are the elements of the array
+     * held by rowsField in a top-level object, or of a top-level array. Any other top-level fields are returned
+     * as the body of the response object once the stream is done.
+     */
+    public RestResponseObject streamHttpCall(String httpMethod, String url, String rowsField,
+                                             Consumer<Map> rowConsumer) throws IOException {
+        return streamHttpCall(httpMethod, url, rowsField, null, rowConsumer);
+    }
+
+    /**
+     * Streams the rows of the response like {@link #streamHttpCall(String, String, String, Consumer)}, keeping
+     * only the projected fields of every row.
+     */
+    public RestResponseObject streamHttpCall(String httpMethod, String url, String rowsField,
+                                             FieldProjection projection, Consumer<Map> rowConsumer)
+            throws IOException {
+        // Rows already handed to the consumer cannot be taken back, so only retry before the first one.
+        AtomicBoolean streamed = new AtomicBoolean();
+        Consumer<Map> streamedRowConsumer = row -> {
+            streamed.set(true);
+            rowConsumer.accept(row);
+        };
+        boolean idempotent = isIdempotent(httpMethod, null);
+        return execute(httpMethod, null, url, () -> idempotent && !streamed.get(), false,
+                httpRequest -> stream(httpRequest, rowsField, projection, streamedRowConsumer));
+    }
+
+    private RestResponseObject stream(HttpUriRequest httpRequest, String rowsField, FieldProjection projection,
+                                      Consumer<Map> rowConsumer) throws IOException {
+        try (CloseableHttpResponse httpResponse = httpTransport.execute(httpRequest)) {
+            StatusLine statusLine = httpResponse.getStatusLine();
+            HttpEntity entity = httpResponse.getEntity();
+            if (statusLine == null ||
+                    statusLine.getStatusCode() < HttpStatus.SC_OK ||
+                    statusLine.getStatusCode() > HttpStatus.SC_ACCEPTED ||
+                    entity == null) {
+                EntityUtils.consumeQuietly(entity);
+                return new RestResponseObject(statusLine);
+            }
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            boolean rowsFound = false;
+            try (InputStream inputStream = entity.getContent();
+                 JsonParser parser = OBJECT_MAPPER.getFactory().createParser(inputStream)) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY) {
+                    rowsFound = true;
+                    streamRows(parser, projection, rowConsumer);
+                } else if (token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String fieldName = parser.getCurrentName();
+                        if (parser.nextToken() == JsonToken.START_ARRAY && fieldName.equals(rowsField)) {
+                            rowsFound = true;
+                            streamRows(parser, projection, rowConsumer);
+                        } else {
+                            metadata.put(fieldName, OBJECT_MAPPER.readValue(parser, Object.class));
+                        }
+                    }
+                }
+            }
+            return new RestResponseObject(metadata, rowsFound);
+        }
+    }
+
+    /**
+     * Runs the exchange against the endpoint's circuit breaker and within the call deadline. Retryable calls
+     * are retried after I/O errors and overload or gateway responses, with exponential backoff and full jitter,
+     * while attempts and deadline allow.
+     */
+    private RestResponseObject execute(String httpMethod, HttpEntity payload, String url, BooleanSupplier retryable,
+                                       boolean hedgeable, Exchange exchange) throws IOException {
+        URI uri = URI.create(url);
+        NodeBalancer nodeBalancer = NodeBalancer.forAuthority(uri.getAuthority());
+        int percentile = hedgePercentile;
+        RequestHedger requestHedger = percentile > 0 && hedgeable &&
+                (payload == null || payload.isRepeatable()) ? RequestHedger.forEndpoint(uri.getAuthority()) : null;
+        int maxAttempts = this.maxAttempts > 0 ? this.maxAttempts :
+                Math.max(1, Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+        long deadline = deadlineMillis;
+        long deadlineAt = deadline > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+        for (int attempt = 1; ; attempt++) {
+            List<Route> routes = route(uri, nodeBalancer);
+            Route route = routes.get(0);
+            try {
+                Answer answer = requestHedger == null ?
+                        new Answer(route, send(newRequest(httpMethod, payload, route.url, deadlineAt, deadline),
+                                route, exchange, deadlineAt)) :
+                        sendHedged(requestHedger, percentile, httpMethod, payload, route,
+                                routes.get(routes.size() - 1), exchange, deadlineAt, deadline);
+                RestResponseObject restResponseObject = answer.restResponseObject;
+                report(answer.route.circuitBreaker, restResponseObject);
+                StatusLine statusLine = restResponseObject.getStatusLine();
+                if (statusLine == null || !RETRYABLE_STATUS_CODES.contains(statusLine.getStatusCode()) ||
+                        !retryable.getAsBoolean() || attempt == maxAttempts) {
+                    return restResponseObject;
+                }
+                LOGGER.warn("{} {} returned {}, retrying", httpMethod, route.url, statusLine.getStatusCode());
+            } catch (IOException e) {
+                if (!(e instanceof ConcurrencyLimiter.RequestShedException)) {
+                    route.circuitBreaker.onFailure();
+                }
+                if (deadlineAt != 0 && deadlineAt - System.nanoTime() <= 0) {
+                    throw (IOException) new SocketTimeoutException(String.format(ERR_DEADLINE_EXCEEDED_MSG, url,
+                            deadline)).initCause(e);
+                }
+                if (!retryable.getAsBoolean() || attempt == maxAttempts) {
+                    throw e;
+                }
+                LOGGER.warn("{} {} failed, retrying", httpMethod, route.url, e);
+            }
+            backOff(attempt, deadlineAt, url);
+        }
+    }
+
+    /**
+     * Picks where to send an attempt: the URL itself, or with a node list for its host the best ranked node
+     * whose circuit lets calls through, followed by the runner-up as the target of a hedge.
+     */
+    private static List<Route> route(URI uri, NodeBalancer nodeBalancer) throws IOException {
+        if (nodeBalancer == null) {
+            CircuitBreaker circuitBreaker = CircuitBreaker.forEndpoint(uri.getAuthority());
+            if (!circuitBreaker.allowRequest()) {
+                throw new IOException(String.format(ERR_CIRCUIT_OPEN_MSG, circuitBreaker.getEndpoint()));
+            }
+            return Collections.singletonList(new Route(uri.toString(), null, circuitBreaker));
+        }
+        List<Route> routes = new ArrayList<>(2);
+        for (NodeBalancer.Node node : nodeBalancer.rank()) {
+            CircuitBreaker circuitBreaker = CircuitBreaker.forEndpoint(node.getAuthority());
+            if (routes.isEmpty() && !circuitBreaker.allowRequest()) {
+                continue;
+            }
+            routes.add(new Route(withAuthority(uri, node.getAuthority()), node, circuitBreaker));
+            if (routes.size() == 2) {
+                break;
+            }
+        }
+        if (routes.isEmpty()) {
+            throw new IOException(String.format(ERR_CIRCUIT_OPEN_MSG, uri.getAuthority()));
+        }
+        return routes;
+    }
+
+    private static String withAuthority(URI uri, String authority) {
+        StringBuilder url = new StringBuilder(uri.getScheme()).append("://").append(authority)
+                .append(StringUtils.defaultString(uri.getRawPath()));
+        if (uri.getRawQuery() != null) {
+            url.append('?').append(uri.getRawQuery());
+        }
+        return url.toString();
+    }
+
+    /**
+     * Builds the request of one attempt, with the transport timeouts capped at the time left until the deadline.
+     */
+    private HttpRequestBase newRequest(String httpMethod, HttpEntity payload, String url, long deadlineAt,
+                                       long deadline) throws IOException {
+        HttpRequestBase httpRequest = (HttpRequestBase) createHttpRequest(httpMethod, url);
         if (payload != null && httpRequest instanceof HttpEntityEnclosingRequestBase) {
             ((HttpEntityEnclosingRequestBase) httpRequest).setEntity(payload);
         }
-        HttpResponse httpResponse = restHttpClient.executeRequest(httpRequest, false,
-                SOCKET_TIMEOUT_SEC, CONN_TIMEOUT_SEC, true);
-        StatusLine statusLine = httpResponse.getStatusLine();
-        HttpEntity entity = httpResponse.getEntity();
-        if (statusLine != null &&
-                statusLine.getStatusCode() >= HttpStatus.SC_OK &&
-                statusLine.getStatusCode() <= HttpStatus.SC_ACCEPTED &&
-                entity != null) {
-            Map map = Maps.newHashMap();
-            try (InputStream inputStream = entity.getContent()) {
-                switch (responseType) {
-                    case RESPONSE_TYPE_STRING:
-                        String valueToken = IOUtils.toString(inputStream, StandardCharsets.UTF_8.name());
-                        map.put("valueToken", valueToken);
-                        break;
-                    case RESPONSE_TYPE_MAP:
-                        try {
-                            map = OBJECT_MAPPER.readValue(inputStream, Map.class);
-                        } catch (JsonMappingException e1) {
-                            LOGGER.info("Error occurred while trying to read REST response as a MAP", e1);
-                        }
-                        break;
+        if (deadlineAt != 0) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineAt - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException(String.format(ERR_DEADLINE_EXCEEDED_MSG, url, deadline));
+            }
+            httpRequest.setConfig(httpTransport.requestConfig(remainingMillis));
+        }
+        return httpRequest;
+    }
+
+    /**
+     * Exchanges the request once the endpoint's concurrency limit, when enabled, lets it through, aborting it
+     * should it still be running at the deadline, and reports the outcome to the limiter and to the node it was
+     * routed to. Requests aborted by the caller, such as the loser of a hedge, are not held against either;
+     * requests aborted at the deadline count as a failure of the node and as overload.
+     */
+    private RestResponseObject send(HttpRequestBase httpRequest, Route route, Exchange exchange, long deadlineAt)
+            throws IOException {
+        ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.isEnabled() ?
+                ConcurrencyLimiter.forEndpoint(route.circuitBreaker.getEndpoint()) : null;
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.acquire(deadlineAt == 0 ? 0 : Math.max(1, deadlineAt - System.nanoTime()));
+        }
+        AtomicBoolean deadlineExceeded = new AtomicBoolean();
+        ScheduledFuture<?> abort = deadlineAt == 0 ? null : httpTransport.runAfter(() -> {
+            deadlineExceeded.set(true);
+            httpRequest.abort();
+        }, Math.max(1, deadlineAt - System.nanoTime()));
+        if (route.node != null) {
+            route.node.begin();
+        }
+        long startedAt = System.nanoTime();
+        try {
+            RestResponseObject restResponseObject = exchange.exchange(httpRequest);
+            StatusLine statusLine = restResponseObject.getStatusLine();
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release(statusLine != null &&
+                        RETRYABLE_STATUS_CODES.contains(statusLine.getStatusCode()));
+            }
+            if (route.node != null) {
+                route.node.end(System.nanoTime() - startedAt, statusLine != null &&
+                        statusLine.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+            return restResponseObject;
+        } catch (IOException | RuntimeException e) {
+            if (concurrencyLimiter != null) {
+                if (httpRequest.isAborted() && !deadlineExceeded.get()) {
+                    concurrencyLimiter.cancel();
+                } else {
+                    // Running into the deadline is a sign of overload like a timeout is.
+                    concurrencyLimiter.release(deadlineExceeded.get() || e instanceof IOException);
+                }
+            }
+            if (route.node != null) {
+                if (httpRequest.isAborted() && !deadlineExceeded.get()) {
+                    route.node.cancel();
+                } else {
+                    route.node.end(System.nanoTime() - startedAt, true);
                 }
             }
-            return new RestResponseObject(map);
+            throw e;
+        } finally {
+            if (abort != null) {
+                abort.cancel(false);
+            }
+        }
+    }
+
+    private static void report(CircuitBreaker circuitBreaker, RestResponseObject restResponseObject) {
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine == null || statusLine.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            circuitBreaker.onSuccess();
         } else {
-            return new RestResponseObject(statusLine);
+            circuitBreaker.onFailure();
+        }
+    }
+
+    /**
+     * Sends the request on the caller's thread and, when no response has arrived by the percentile of the
+     * endpoint's recent latency and the hedge budget and hedge threads allow, a duplicate of it to the hedge
+     * route. The first response wins and the other request is aborted; the call only fails when every request
+     * sent failed. An aborted loser's latency is recorded up to its abort, so that the window does not only
+     * see the faster responses. Returns the winning response with the route that answered it.
+     */
+    private Answer sendHedged(RequestHedger requestHedger, int percentile, String httpMethod, HttpEntity payload,
+                              Route route, Route hedgeRoute, Exchange exchange, long deadlineAt, long deadline)
+            throws IOException {
+        requestHedger.recordRequest();
+        long hedgeDelayNanos = requestHedger.hedgeDelayNanos(percentile);
+        HttpRequestBase primaryRequest = newRequest(httpMethod, payload, route.url, deadlineAt, deadline);
+        long startedAt = System.nanoTime();
+        if (hedgeDelayNanos < 0) {
+            // Too few latencies observed yet to tell a slow response.
+            RestResponseObject restResponseObject = send(primaryRequest, route, exchange, deadlineAt);
+            requestHedger.recordLatency(System.nanoTime() - startedAt);
+            return new Answer(route, restResponseObject);
+        }
+        HedgedCall call = new HedgedCall();
+        ScheduledFuture<?> hedgeTimer = httpTransport.runAfter(() -> startHedge(call, requestHedger, httpMethod,
+                payload, route, hedgeRoute, exchange, primaryRequest, deadlineAt, deadline, hedgeDelayNanos),
+                hedgeDelayNanos);
+        try {
+            RestResponseObject restResponseObject = send(primaryRequest, route, exchange, deadlineAt);
+            requestHedger.recordLatency(System.nanoTime() - startedAt);
+            Answer answer = new Answer(route, restResponseObject);
+            if (call.winner.complete(answer)) {
+                return answer;
+            }
+            // The hedge won just before the primary request completed; the caller reports the hedge's route.
+            if (hedgeRoute.circuitBreaker != route.circuitBreaker) {
+                report(route.circuitBreaker, restResponseObject);
+            }
+            return call.winner.getNow(null);
+        } catch (IOException | RuntimeException e) {
+            // When the hedge answers instead, the caller reports the hedge's route, so the primary's is told here.
+            if (call.winner.isDone()) {
+                // Aborted because the hedge won.
+                requestHedger.recordLatency(System.nanoTime() - startedAt);
+                reportPrimaryFailure(route, hedgeRoute, e);
+                return call.winner.getNow(null);
+            }
+            if (!call.state.compareAndSet(HedgedCall.WAITING, HedgedCall.PRIMARY_ONLY)) {
+                Answer hedgedAnswer = call.awaitHedge(route.url);
+                if (hedgedAnswer != null) {
+                    reportPrimaryFailure(route, hedgeRoute, e);
+                    return hedgedAnswer;
+                }
+            }
+            throw e;
+        } finally {
+            hedgeTimer.cancel(false);
+            call.finish();
+        }
+    }
+
+    private static void reportPrimaryFailure(Route route, Route hedgeRoute, Exception e) {
+        if (hedgeRoute.circuitBreaker != route.circuitBreaker &&
+                !(e instanceof ConcurrencyLimiter.RequestShedException)) {
+            route.circuitBreaker.onFailure();
+        }
+    }
+
+    /**
+     * Hands the hedge to a hedge thread, unless the primary request has already completed or every hedge
+     * thread is busy. Runs on the transport's timer thread.
+     */
+    private void startHedge(HedgedCall call, RequestHedger requestHedger, String httpMethod, HttpEntity payload,
+                            Route route, Route hedgeRoute, Exchange exchange, HttpRequestBase primaryRequest,
+                            long deadlineAt, long deadline, long hedgeDelayNanos) {
+        if (!call.state.compareAndSet(HedgedCall.WAITING, HedgedCall.HEDGING)) {
+            return;
+        }
+        try {
+            HEDGE_EXECUTOR.execute(() -> {
+                try {
+                    // The hedge route's circuit is only asked once a hedge is actually due.
+                    if (hedgeRoute.circuitBreaker.allowRequest() && requestHedger.tryHedge(hedgeMaxPercent)) {
+                        LOGGER.debug("No response from {} after {} ms, hedging the request to {}", route.url,
+                                TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos), hedgeRoute.url);
+                        sendHedge(call, requestHedger, newRequest(httpMethod, payload, hedgeRoute.url, deadlineAt,
+                                deadline), route, hedgeRoute, exchange, primaryRequest, deadlineAt);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("Hedged request to {} failed", hedgeRoute.url, e);
+                } finally {
+                    call.hedgeDone.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Every hedge thread is busy, not hedging the request to {}", route.url);
+            call.hedgeDone.complete(null);
+        }
+    }
+
+    /**
+     * Sends the hedge. A winning response is reported by the caller to the hedge route's circuit breaker;
+     * otherwise the outcome is reported here, when that breaker is not the primary route's.
+     */
+    private void sendHedge(HedgedCall call, RequestHedger requestHedger, HttpRequestBase hedgeRequest,
+                           Route route, Route hedgeRoute, Exchange exchange, HttpRequestBase primaryRequest,
+                           long deadlineAt) throws IOException {
+        boolean ownBreaker = hedgeRoute.circuitBreaker != route.circuitBreaker;
+        if (!call.setHedgeRequest(hedgeRequest)) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        try {
+            RestResponseObject restResponseObject = send(hedgeRequest, hedgeRoute, exchange, deadlineAt);
+            requestHedger.recordLatency(System.nanoTime() - startedAt);
+            if (call.winner.complete(new Answer(hedgeRoute, restResponseObject))) {
+                primaryRequest.abort();
+            } else if (ownBreaker) {
+                report(hedgeRoute.circuitBreaker, restResponseObject);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (call.winner.isDone()) {
+                // Aborted because the primary request won.
+                requestHedger.recordLatency(System.nanoTime() - startedAt);
+                return;
+            }
+            if (ownBreaker && !(e instanceof ConcurrencyLimiter.RequestShedException)) {
+                hedgeRoute.circuitBreaker.onFailure();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * State shared by the primary request of a hedged call, running on the caller's thread, and its hedge.
+     */
+    private static class HedgedCall {
+        private static final int WAITING = 0;
+        private static final int HEDGING = 1;
+        private static final int PRIMARY_ONLY = 2;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final CompletableFuture<Answer> winner = new CompletableFuture<>();
+        private final CompletableFuture<Void> hedgeDone = new CompletableFuture<>();
+        private volatile HttpRequestBase hedgeRequest;
+        private volatile boolean finished;
+
+        /**
+         * Records the hedge request so that it can be aborted, returning false when the call is already over.
+         */
+        boolean setHedgeRequest(HttpRequestBase httpRequest) {
+            hedgeRequest = httpRequest;
+            if (finished) {
+                httpRequest.abort();
+                return false;
+            }
+            return true;
+        }
+
+        void finish() {
+            finished = true;
+            HttpRequestBase httpRequest = hedgeRequest;
+            if (httpRequest != null) {
+                httpRequest.abort();
+            }
+        }
+
+        /**
+         * Waits for the hedge and returns its answer, or null when it was not sent or failed.
+         */
+        Answer awaitHedge(String url) throws IOException {
+            try {
+                hedgeDone.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format(ERR_HEDGED_CALL_INTERRUPTED_MSG, url));
+            } catch (java.util.concurrent.ExecutionException e) {
+                return null;
+            }
+            return winner.getNow(null);
+        }
+    }
+
+    /**
+     * Sleeps a random time up to the exponential backoff of the attempt, without running past the deadline.
+     */
+    private static void backOff(int attempt, long deadlineAt, String url) throws IOException {
+        long delayMillis = ThreadLocalRandom.current().nextLong(Math.min(RETRY_MAX_DELAY_MILLIS,
+                RETRY_BASE_DELAY_MILLIS << Math.min(attempt - 1, 16)) + 1);
+        if (deadlineAt != 0) {
+            delayMillis = Math.min(delayMillis, Math.max(0,
+                    TimeUnit.NANOSECONDS.toMillis(deadlineAt - System.nanoTime())));
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format(ERR_RETRY_INTERRUPTED_MSG, url));
         }
     }
 
+    private static boolean isIdempotent(String httpMethod, HttpEntity payload) {
+        return IDEMPOTENT_METHODS.contains(httpMethod) && (payload == null || payload.isRepeatable());
+    }
+
+    private static Map readProjected(InputStream inputStream, FieldProjection projection) throws IOException {
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(inputStream)) {
+            return projection.read(parser);
+        }
+    }
+
+    private static void streamRows(JsonParser parser, FieldProjection projection, Consumer<Map> rowConsumer)
+            throws IOException {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            Object row = projection == null ? OBJECT_MAPPER.readValue(parser, Object.class) :
+                    projection.read(parser);
+            if (row instanceof Map) {
+                rowConsumer.accept((Map) row);
+            } else {
+                Map<String, Object> wrapped = new LinkedHashMap<>();
+                wrapped.put(ROW_VALUE_KEY, row);
+                rowConsumer.accept(wrapped);
+            }
+        }
+    }
+
+    /**
+     * Invokes a request without payload, coalescing it with an identical request that is already in flight
+     * anywhere on the node: only one goes to the wire and every caller, the one that sent it included, gets
+     * its own copy of the parsed response. Only use for idempotent calls.
+     */
+    public RestResponseObject invokeSharedHttpCall(String httpMethod, String url, String responseType)
+            throws IOException {
+        return invokeSharedHttpCall(httpMethod, url, responseType, null);
+    }
+
+    public RestResponseObject invokeSharedHttpCall(String httpMethod, String url, String responseType,
+                                                   FieldProjection projection) throws IOException {
+        String callKey = httpMethod + ' ' + responseType + ' ' + url + ' ' + projection;
+        CompletableFuture<RestResponseObject> call = new CompletableFuture<>();
+        CompletableFuture<RestResponseObject> inFlightCall = IN_FLIGHT_CALLS.putIfAbsent(callKey, call);
+        if (inFlightCall != null) {
+            LOGGER.debug("Joining in-flight {} request to {}", httpMethod, url);
+            return copyOf(await(inFlightCall, url));
+        }
+        try {
+            RestResponseObject restResponseObject = invokeHttpCall(httpMethod, null, url, responseType,
+                    projection);
+            // The shared response is never handed out itself, every caller gets a copy it may change freely.
+            call.complete(restResponseObject);
+            return copyOf(restResponseObject);
+        } catch (IOException | RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT_CALLS.remove(callKey, call);
+        }
+    }
+
+    private static RestResponseObject await(CompletableFuture<RestResponseObject> call, String url)
+            throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format(ERR_SHARED_CALL_FAILED_MSG, url));
+        } catch (java.util.concurrent.ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(String.format(ERR_SHARED_CALL_FAILED_MSG, url), cause);
+        }
+    }
+
+    private static RestResponseObject copyOf(RestResponseObject restResponseObject) {
+        if (restResponseObject.getStatusLine() != null) {
+            return restResponseObject;
+        }
+        return new RestResponseObject((Map) deepCopy(restResponseObject.getBody()));
+    }
+
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(deepCopy(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    public static HttpEntity toJsonEntity(Object value) throws IOException {
+        return new StringEntity(OBJECT_MAPPER.writeValueAsString(value), ContentType.APPLICATION_JSON);
+    }
+
     private HttpUriRequest createHttpRequest(String httpMethod, String url) {
         switch (httpMethod) {
             case HttpGet.METHOD_NAME:
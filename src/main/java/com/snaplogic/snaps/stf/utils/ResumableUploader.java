@@ -0,0 +1,237 @@
+package com.snaplogic.snaps.stf.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import static com.snaplogic.snaps.stf.Constants.MAPPING_AUTHORITY;
+import static com.snaplogic.snaps.stf.Constants.RESPONSE_TYPE_MAP;
+import static com.snaplogic.snaps.stf.utils.RestUtil.RestResponseObject;
+
+/**
+ * Uploads a file in fixed-size parts that survive failures and pipeline restarts.
+ * <p>
+ * The upload is opened with the mapping service, every part is PUT with its number and acknowledged parts
+ * are recorded with their SHA-256 in a checkpoint file on local disk. The upload is completed by posting to
+ * the original endpoint with the upload id instead of a file. A later attempt for the same file and endpoint
+ * resumes after the last acknowledged part; parts before it are read again only to check that the file has
+ * not changed, and an upload whose file got shorter than its acknowledged parts is started over. Uploads of
+ * the same file to the same endpoint run one at a time, as they share the checkpoint. The service base URL can
+ * be pointed at a stand-in with {@value #BASE_URL_PROPERTY}.
+ */
+public class ResumableUploader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableUploader.class);
+    static final String BASE_URL_PROPERTY = "stf.upload.url";
+    private static final String DEFAULT_BASE_URL = "http://" + MAPPING_AUTHORITY + "/uploads";
+    private static final String PART_URL_FORMAT = "%s/%s/parts/%d";
+    private static final String UPLOAD_ID_PARAM = "uploadId";
+    private static final String UPLOAD_ID_KEY = "uploadId";
+    private static final String PART_SIZE_KEY = "partSize";
+    private static final String PART_HASHES_KEY = "partHashes";
+    private static final String CHECKPOINT_DIRECTORY_NAME = "stf-upload-checkpoints";
+    private static final String CHECKPOINT_SUFFIX = ".json";
+    private static final String ERR_START_UPLOAD = "Unable to start upload, HTTP code: %s, Reason: %s";
+    private static final String ERR_UPLOAD_PART = "Unable to upload part %d, HTTP code: %s, Reason: %s";
+    private static final String ERR_NO_UPLOAD_ID = "Upload was started without an upload id";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final Striped<Lock> CHECKPOINT_LOCKS = Striped.lazyWeakLock(64);
+
+    /**
+     * Opens the file content from the start.
+     */
+    public interface StreamSource {
+        InputStream open() throws IOException;
+    }
+
+    private static class Checkpoint {
+        private String uploadId;
+        private long partSize;
+        private List<String> partHashes = new ArrayList<>();
+    }
+
+    private final RestUtil restUtil;
+    private final int partSize;
+    private final String baseUrl;
+    private final File checkpointDirectory;
+
+    public ResumableUploader(RestUtil restUtil, int partSize) {
+        this.restUtil = restUtil;
+        this.partSize = partSize;
+        this.baseUrl = System.getProperty(BASE_URL_PROPERTY, DEFAULT_BASE_URL);
+        this.checkpointDirectory = new File(System.getProperty("java.io.tmpdir"), CHECKPOINT_DIRECTORY_NAME);
+    }
+
+    /**
+     * Uploads the file for the target endpoint and returns the response of completing the upload. The
+     * checkpoint is removed once the upload completes or the service no longer knows it.
+     */
+    public RestResponseObject upload(String targetUrl, String fileKey, StreamSource source) throws IOException {
+        File checkpointFile = new File(checkpointDirectory, Hashing.sha256()
+                .hashString(targetUrl + '|' + fileKey, StandardCharsets.UTF_8) + CHECKPOINT_SUFFIX);
+        Lock lock = CHECKPOINT_LOCKS.get(checkpointFile.getName());
+        lock.lock();
+        try {
+            return upload(checkpointFile, targetUrl, fileKey, source);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RestResponseObject upload(File checkpointFile, String targetUrl, String fileKey, StreamSource source)
+            throws IOException {
+        Checkpoint checkpoint = loadCheckpoint(checkpointFile);
+        if (checkpoint == null) {
+            checkpoint = startUpload();
+        } else {
+            LOGGER.info("Resuming upload {} of {} after {} acknowledged parts", checkpoint.uploadId, fileKey,
+                    checkpoint.partHashes.size());
+        }
+        RestResponseObject restResponseObject = uploadParts(checkpoint, checkpointFile, targetUrl, source);
+        StatusLine statusLine = restResponseObject == null ? null : restResponseObject.getStatusLine();
+        if (restResponseObject == null || statusLine != null &&
+                statusLine.getStatusCode() == HttpStatus.SC_NOT_FOUND && !checkpoint.partHashes.isEmpty()) {
+            // The file got shorter or the service expired the upload; start over once with a fresh one.
+            LOGGER.warn("Upload {} of {} cannot be resumed, restarting it", checkpoint.uploadId, fileKey);
+            Files.deleteIfExists(checkpointFile.toPath());
+            restResponseObject = uploadParts(startUpload(), checkpointFile, targetUrl, source);
+            statusLine = restResponseObject.getStatusLine();
+        }
+        if (statusLine == null || statusLine.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            Files.deleteIfExists(checkpointFile.toPath());
+        }
+        return restResponseObject;
+    }
+
+    /**
+     * Sends the parts not acknowledged yet and completes the upload. Returns null, without completing, when
+     * the file now ends before the acknowledged parts, which the service would otherwise assemble with it.
+     */
+    private RestResponseObject uploadParts(Checkpoint checkpoint, File checkpointFile, String targetUrl,
+                                           StreamSource source) throws IOException {
+        byte[] buffer = new byte[partSize];
+        int part = 0;
+        try (InputStream inputStream = source.open()) {
+            int length;
+            while ((length = IOUtils.read(inputStream, buffer)) > 0) {
+                String partHash = Hashing.sha256().hashBytes(buffer, 0, length).toString();
+                if (part < checkpoint.partHashes.size()) {
+                    if (partHash.equals(checkpoint.partHashes.get(part))) {
+                        part++;
+                        continue;
+                    }
+                    LOGGER.info("Part {} of upload {} changed since it was sent, resending from there", part,
+                            checkpoint.uploadId);
+                    checkpoint.partHashes.subList(part, checkpoint.partHashes.size()).clear();
+                }
+                StatusLine statusLine = uploadPart(checkpoint.uploadId, part, buffer, length);
+                if (statusLine != null) {
+                    if (statusLine.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                        return new RestResponseObject(statusLine);
+                    }
+                    throw new IOException(String.format(ERR_UPLOAD_PART, part, statusLine.getStatusCode(),
+                            statusLine.getReasonPhrase()));
+                }
+                checkpoint.partHashes.add(partHash);
+                saveCheckpoint(checkpointFile, checkpoint);
+                part++;
+            }
+        }
+        if (part < checkpoint.partHashes.size()) {
+            LOGGER.info("File of upload {} ends after part {} of {} acknowledged parts", checkpoint.uploadId,
+                    part, checkpoint.partHashes.size());
+            return null;
+        }
+        LOGGER.info("Completing upload {} with {} parts", checkpoint.uploadId, part);
+        String completeUrl = targetUrl + (targetUrl.indexOf('?') < 0 ? '?' : '&') + UPLOAD_ID_PARAM + '=' +
+                checkpoint.uploadId;
+        return restUtil.invokeHttpCall(HttpPost.METHOD_NAME, null, completeUrl, RESPONSE_TYPE_MAP);
+    }
+
+    /**
+     * Sends a part; transient failures are retried by {@link RestUtil}. Returns null once the part is
+     * acknowledged, or the status line of a rejection.
+     */
+    private StatusLine uploadPart(String uploadId, int part, byte[] buffer, int length) throws IOException {
+        String partUrl = String.format(PART_URL_FORMAT, baseUrl, uploadId, part);
+        return restUtil.invokeHttpCall(HttpPut.METHOD_NAME, new ByteArrayEntity(buffer, 0, length,
+                ContentType.APPLICATION_OCTET_STREAM), partUrl, RESPONSE_TYPE_MAP).getStatusLine();
+    }
+
+    private Checkpoint startUpload() throws IOException {
+        RestResponseObject restResponseObject = restUtil.invokeHttpCall(HttpPost.METHOD_NAME, null, baseUrl,
+                RESPONSE_TYPE_MAP);
+        StatusLine statusLine = restResponseObject.getStatusLine();
+        if (statusLine != null) {
+            throw new IOException(String.format(ERR_START_UPLOAD, statusLine.getStatusCode(),
+                    statusLine.getReasonPhrase()));
+        }
+        Object uploadId = restResponseObject.getBody().get(UPLOAD_ID_KEY);
+        if (uploadId == null) {
+            throw new IOException(ERR_NO_UPLOAD_ID);
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.uploadId = uploadId.toString();
+        checkpoint.partSize = partSize;
+        return checkpoint;
+    }
+
+    /**
+     * Returns the checkpoint, or null when there is none usable with the current part size.
+     */
+    private Checkpoint loadCheckpoint(File checkpointFile) {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        try {
+            Map map = OBJECT_MAPPER.readValue(checkpointFile, Map.class);
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.uploadId = (String) map.get(UPLOAD_ID_KEY);
+            checkpoint.partSize = ((Number) map.get(PART_SIZE_KEY)).longValue();
+            for (Object partHash : (List<?>) map.get(PART_HASHES_KEY)) {
+                checkpoint.partHashes.add(partHash.toString());
+            }
+            return checkpoint.uploadId != null && checkpoint.partSize == partSize ? checkpoint : null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring unreadable upload checkpoint {}", checkpointFile, e);
+            return null;
+        }
+    }
+
+    private void saveCheckpoint(File checkpointFile, Checkpoint checkpoint) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put(UPLOAD_ID_KEY, checkpoint.uploadId);
+        map.put(PART_SIZE_KEY, checkpoint.partSize);
+        map.put(PART_HASHES_KEY, checkpoint.partHashes);
+        Files.createDirectories(checkpointDirectory.toPath());
+        File tempFile = File.createTempFile(checkpointFile.getName(), null, checkpointDirectory);
+        try {
+            OBJECT_MAPPER.writeValue(tempFile, map);
+            Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.snaplogic.snaps.stf.utils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Infers a JSON-schema style description of the records of a file in a single streaming pass.
+ * <p>
+ * Records are read on the caller's thread and handed out in chunks to worker threads, which parse them and
+ * collect type statistics per field. Chunk statistics are merged on the caller's thread as they complete;
+ * types are widened along a small lattice where null widens to anything, integer to number and any other
+ * conflict to string. CSV field text is typed by its content.
+ */
+public class SchemaInference {
+    private static final int CHUNK_SIZE = 5000;
+    private static final String TYPE_NULL = "null";
+    private static final String TYPE_BOOLEAN = "boolean";
+    private static final String TYPE_INTEGER = "integer";
+    private static final String TYPE_NUMBER = "number";
+    private static final String TYPE_STRING = "string";
+    private static final String TYPE_OBJECT = "object";
+    private static final String TYPE_ARRAY = "array";
+    private static final String TYPE_KEY = "type";
+    private static final String NULLABLE_KEY = "nullable";
+    private static final String PROPERTIES_KEY = "properties";
+    private static final String ITEMS_KEY = "items";
+    private static final String RECORD_COUNT_KEY = "recordCount";
+    private static final String DIFF_PATH_KEY = "path";
+    private static final String DIFF_REMOTE_KEY = "remote";
+    private static final String DIFF_LOCAL_KEY = "local";
+    // Plain decimal notation only: no type suffixes such as "1L" or "3f", no hex and no octal.
+    private static final Pattern INTEGER_PATTERN = Pattern.compile("-?\\d+");
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("-?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+    /**
+     * Supplies the text of the records to scan, returning null at the end.
+     */
+    public interface Records {
+        String next() throws IOException;
+    }
+
+    private static class FieldStats {
+        private String type = TYPE_NULL;
+        private long count;
+        private long nulls;
+        private Map<String, FieldStats> properties;
+        private FieldStats items;
+
+        void add(Object value, boolean typeStrings) {
+            count++;
+            String valueType = typeOf(value, typeStrings);
+            if (TYPE_NULL.equals(valueType)) {
+                nulls++;
+                return;
+            }
+            type = widen(type, valueType);
+            if (value instanceof Map) {
+                if (properties == null) {
+                    properties = new LinkedHashMap<>();
+                }
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    properties.computeIfAbsent(String.valueOf(entry.getKey()), key -> new FieldStats())
+                            .add(entry.getValue(), typeStrings);
+                }
+            } else if (value instanceof List) {
+                if (items == null) {
+                    items = new FieldStats();
+                }
+                for (Object element : (List<?>) value) {
+                    items.add(element, typeStrings);
+                }
+            }
+        }
+
+        void merge(FieldStats other) {
+            type = widen(type, other.type);
+            count += other.count;
+            nulls += other.nulls;
+            if (other.properties != null) {
+                if (properties == null) {
+                    properties = new LinkedHashMap<>();
+                }
+                for (Map.Entry<String, FieldStats> entry : other.properties.entrySet()) {
+                    FieldStats stats = properties.get(entry.getKey());
+                    if (stats == null) {
+                        properties.put(entry.getKey(), entry.getValue());
+                    } else {
+                        stats.merge(entry.getValue());
+                    }
+                }
+            }
+            if (other.items != null) {
+                if (items == null) {
+                    items = other.items;
+                } else {
+                    items.merge(other.items);
+                }
+            }
+        }
+
+        /**
+         * Describes the field; it is nullable when it held nulls or was missing from some parent objects.
+         */
+        Map<String, Object> toSchema(long parentCount) {
+            Map<String, Object> schema = new LinkedHashMap<>();
+            schema.put(TYPE_KEY, TYPE_NULL.equals(type) ? TYPE_STRING : type);
+            schema.put(NULLABLE_KEY, nulls > 0 || count < parentCount);
+            long objectCount = count - nulls;
+            if (properties != null && TYPE_OBJECT.equals(type)) {
+                Map<String, Object> children = new LinkedHashMap<>();
+                for (Map.Entry<String, FieldStats> entry : properties.entrySet()) {
+                    children.put(entry.getKey(), entry.getValue().toSchema(objectCount));
+                }
+                schema.put(PROPERTIES_KEY, children);
+            }
+            if (items != null && TYPE_ARRAY.equals(type)) {
+                schema.put(ITEMS_KEY, items.toSchema(0));
+            }
+            return schema;
+        }
+    }
+
+    private SchemaInference() {
+    }
+
+    /**
+     * Scans every record and returns the schema of the record objects together with the number of records.
+     */
+    public static Map<String, Object> infer(RecordReader reader, Records records, int parallelism)
+            throws IOException {
+        boolean typeStrings = reader.getFormat() == RecordReader.Format.CSV;
+        FieldStats root = new FieldStats();
+        RequestPipeline.Handler<Integer, FieldStats> handler = new RequestPipeline.Handler<Integer, FieldStats>() {
+            @Override
+            public void onResult(Integer chunk, FieldStats stats) {
+                root.merge(stats);
+            }
+
+            @Override
+            public void onError(Integer chunk, RuntimeException error) {
+                throw error;
+            }
+        };
+        try (RequestPipeline<Integer, FieldStats> pipeline = new RequestPipeline<>("schema-inference",
+                parallelism, false, handler)) {
+            int chunk = 0;
+            List<String> texts;
+            do {
+                texts = new ArrayList<>(CHUNK_SIZE);
+                String record;
+                while (texts.size() < CHUNK_SIZE && (record = records.next()) != null) {
+                    texts.add(record);
+                }
+                if (!texts.isEmpty()) {
+                    final List<String> chunkTexts = texts;
+                    pipeline.submit(chunk++, () -> scan(reader, chunkTexts, typeStrings));
+                }
+            } while (texts.size() == CHUNK_SIZE);
+            pipeline.drain();
+        }
+        Map<String, Object> schema = root.toSchema(root.count);
+        schema.remove(NULLABLE_KEY);
+        schema.put(RECORD_COUNT_KEY, root.count);
+        return schema;
+    }
+
+    /**
+     * Lists the paths at which two documents differ, such as a schema from the mapping service and one
+     * inferred locally.
+     */
+    public static List<Map<String, Object>> diff(Object remote, Object local) {
+        List<Map<String, Object>> differences = new ArrayList<>();
+        diff(remote, local, "", differences);
+        return differences;
+    }
+
+    private static void diff(Object remote, Object local, String path, List<Map<String, Object>> differences) {
+        if (remote instanceof Map && local instanceof Map) {
+            Map<?, ?> remoteMap = (Map<?, ?>) remote;
+            Map<?, ?> localMap = (Map<?, ?>) local;
+            TreeSet<String> keys = new TreeSet<>();
+            for (Object key : remoteMap.keySet()) {
+                keys.add(String.valueOf(key));
+            }
+            for (Object key : localMap.keySet()) {
+                keys.add(String.valueOf(key));
+            }
+            for (String key : keys) {
+                diff(remoteMap.get(key), localMap.get(key), path + '/' + key, differences);
+            }
+        } else if (remote instanceof List && local instanceof List &&
+                ((List<?>) remote).size() == ((List<?>) local).size()) {
+            for (int i = 0; i < ((List<?>) remote).size(); i++) {
+                diff(((List<?>) remote).get(i), ((List<?>) local).get(i), path + '/' + i, differences);
+            }
+        } else if (!Objects.equals(remote, local)) {
+            Map<String, Object> difference = new LinkedHashMap<>();
+            difference.put(DIFF_PATH_KEY, path.isEmpty() ? "/" : path);
+            difference.put(DIFF_REMOTE_KEY, remote);
+            difference.put(DIFF_LOCAL_KEY, local);
+            differences.add(difference);
+        }
+    }
+
+    private static FieldStats scan(RecordReader reader, List<String> texts, boolean typeStrings)
+            throws IOException {
+        FieldStats stats = new FieldStats();
+        for (String text : texts) {
+            stats.add(reader.parse(text), typeStrings);
+        }
+        return stats;
+    }
+
+    private static String typeOf(Object value, boolean typeStrings) {
+        if (value == null) {
+            return TYPE_NULL;
+        } else if (value instanceof Map) {
+            return TYPE_OBJECT;
+        } else if (value instanceof List) {
+            return TYPE_ARRAY;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Integer || value instanceof Long || value instanceof BigInteger) {
+            return TYPE_INTEGER;
+        } else if (value instanceof Number) {
+            return TYPE_NUMBER;
+        } else if (typeStrings) {
+            String text = value.toString().trim();
+            if (text.isEmpty()) {
+                return TYPE_NULL;
+            } else if ("true".equalsIgnoreCase(text) || "false".equalsIgnoreCase(text)) {
+                return TYPE_BOOLEAN;
+            } else if (INTEGER_PATTERN.matcher(text).matches()) {
+                return TYPE_INTEGER;
+            } else if (NUMBER_PATTERN.matcher(text).matches()) {
+                return TYPE_NUMBER;
+            }
+        }
+        return TYPE_STRING;
+    }
+
+    private static String widen(String current, String other) {
+        if (current.equals(other) || TYPE_NULL.equals(other)) {
+            return current;
+        } else if (TYPE_NULL.equals(current)) {
+            return other;
+        } else if (TYPE_NUMBER.equals(current) && TYPE_INTEGER.equals(other) ||
+                TYPE_INTEGER.equals(current) && TYPE_NUMBER.equals(other)) {
+            return TYPE_NUMBER;
+        }
+        return TYPE_STRING;
+    }
+}